@@ -40,7 +40,7 @@ public class MainActivity extends AppCompatActivity {
             Log.i(TAG,"normal package manager hook,and detect result:" + checkPMProxy());
 
             // vproxy hook
-            Object vproxyPM = ProxyBuilder.newProxyInstance(this, mPM.getClass().getInterfaces()[0], new InvocationHandler() {
+            Object vproxyPM = ProxyBuilder.newProxyInstance(this, mPM.getClass().getInterfaces(), new InvocationHandler() {
                 @Override
                 public Object invoke(Object o, Method method, Object[] objects) throws Throwable {
                     return null;
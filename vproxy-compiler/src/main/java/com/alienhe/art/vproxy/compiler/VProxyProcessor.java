@@ -0,0 +1,366 @@
+package com.alienhe.art.vproxy.compiler;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import javax.tools.StandardLocation;
+
+/**
+ * Generates the proxy classes requested by {@code @GenerateVProxy} as Java source.
+ * <p>
+ * A generated class behaves like the class {@code ProxyBuilder} generates at runtime for an
+ * {@code InvocationHandler}: it has the same name, looks the proxied methods up once, boxes the
+ * arguments, and throws whatever the handler throws. It comes with a nested {@code Factory},
+ * which {@code ProxyBuilder} loads as the generated {@code <proxy>$Factory}. It also writes the
+ * rules keeping the names of the interfaces, which {@code ProxyBuilder} finds the classes by.
+ * <p>
+ * The annotation is referred to by name, so that this processor does not depend on the Android
+ * library declaring it.
+ *
+ * @author alienhe
+ */
+public final class VProxyProcessor extends AbstractProcessor {
+
+    private static final String ANNOTATION = "com.alienhe.art.vproxy.GenerateVProxy";
+
+    private static final String PROXY_FACTORY = "com.alienhe.art.vproxy.ProxyFactory";
+
+    private static final String EMPTY_ARGS = "com.alienhe.art.vproxy.ProxyBuilder.EMPTY_ARGS";
+
+    /**
+     * Same as the prefix of the proxy classes {@code ProxyBuilder} generates for an
+     * {@code InvocationHandler}, which is followed by the simple name of the interface and the
+     * digest of its binary name.
+     */
+    private static final String PROXY_CLASS_PREFIX = "_Proxy_";
+
+    private static final String KEEP_RULES_DIR = "META-INF/proguard/";
+
+    private static final Map<TypeKind, String> BOXED_TYPES = new HashMap<>();
+
+    static {
+        BOXED_TYPES.put(TypeKind.BOOLEAN, "Boolean");
+        BOXED_TYPES.put(TypeKind.BYTE, "Byte");
+        BOXED_TYPES.put(TypeKind.CHAR, "Character");
+        BOXED_TYPES.put(TypeKind.SHORT, "Short");
+        BOXED_TYPES.put(TypeKind.INT, "Integer");
+        BOXED_TYPES.put(TypeKind.LONG, "Long");
+        BOXED_TYPES.put(TypeKind.FLOAT, "Float");
+        BOXED_TYPES.put(TypeKind.DOUBLE, "Double");
+    }
+
+    /**
+     * 已生成的代理类及其接口，跨 round 去重
+     */
+    private final Map<String, String> generatedClasses = new HashMap<>();
+
+    /**
+     * 已生成代理类的接口的 binary name，最后一个 round 写入 keep 规则
+     */
+    private final Set<String> keptInterfaces = new TreeSet<>();
+
+    @Override
+    public Set<String> getSupportedAnnotationTypes() {
+        return Collections.singleton(ANNOTATION);
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(final Set<? extends TypeElement> annotations, final RoundEnvironment roundEnv) {
+        if (roundEnv.processingOver()) {
+            writeKeepRules();
+            return false;
+        }
+        final TypeElement annotation = processingEnv.getElementUtils().getTypeElement(ANNOTATION);
+        if (annotation == null) {
+            return false;
+        }
+        for (Element element : roundEnv.getElementsAnnotatedWith(annotation)) {
+            for (TypeElement interfaceElement : getInterfaces(element, annotation)) {
+                if (checkInterface(interfaceElement, element)) {
+                    generateProxyClass(interfaceElement, element);
+                }
+            }
+        }
+        return true;
+    }
+
+    private List<TypeElement> getInterfaces(final Element element, final TypeElement annotation) {
+        final List<TypeElement> interfaces = new ArrayList<>();
+        for (AnnotationMirror mirror : element.getAnnotationMirrors()) {
+            if (!processingEnv.getTypeUtils().isSameType(mirror.getAnnotationType(), annotation.asType())) {
+                continue;
+            }
+            for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry
+                    : mirror.getElementValues().entrySet()) {
+                if (!entry.getKey().getSimpleName().contentEquals("value")) {
+                    continue;
+                }
+                for (Object value : (List<?>) entry.getValue().getValue()) {
+                    final TypeMirror type = (TypeMirror) ((AnnotationValue) value).getValue();
+                    interfaces.add((TypeElement) ((DeclaredType) type).asElement());
+                }
+            }
+        }
+        if (interfaces.isEmpty() && element instanceof TypeElement) {
+            interfaces.add((TypeElement) element);
+        }
+        return interfaces;
+    }
+
+    private boolean checkInterface(final TypeElement interfaceElement, final Element annotatedElement) {
+        if (interfaceElement.getKind() != ElementKind.INTERFACE) {
+            error(annotatedElement, interfaceElement.getQualifiedName() + " is not an interface");
+            return false;
+        }
+        if (interfaceElement.getModifiers().contains(Modifier.PRIVATE)) {
+            error(annotatedElement, interfaceElement.getQualifiedName() + " is private");
+            return false;
+        }
+        // 代理类和接口在同一个包中，不能向 java 包中添加类
+        final String packageName = processingEnv.getElementUtils().getPackageOf(interfaceElement)
+                .getQualifiedName().toString();
+        if (packageName.equals("java") || packageName.startsWith("java.")) {
+            error(annotatedElement, interfaceElement.getQualifiedName()
+                    + " cannot be proxied at build time, its proxy class would be in package " + packageName);
+            return false;
+        }
+        return true;
+    }
+
+    private void generateProxyClass(final TypeElement interfaceElement, final Element annotatedElement) {
+        final String packageName = processingEnv.getElementUtils().getPackageOf(interfaceElement)
+                .getQualifiedName().toString();
+        final String className = PROXY_CLASS_PREFIX + interfaceElement.getSimpleName() + '_'
+                + digest("java.lang.Object," + processingEnv.getElementUtils().getBinaryName(interfaceElement));
+        final String qualifiedName = packageName.isEmpty() ? className : packageName + "." + className;
+        final String interfaceName = erasure(interfaceElement.asType());
+        final String generatedInterface = generatedClasses.get(qualifiedName);
+        if (generatedInterface != null) {
+            if (!generatedInterface.equals(interfaceName)) {
+                error(annotatedElement, "Proxy class " + qualifiedName + " of " + interfaceName
+                        + " clashes with the proxy class of " + generatedInterface);
+            }
+            return;
+        }
+        generatedClasses.put(qualifiedName, interfaceName);
+        keptInterfaces.add(processingEnv.getElementUtils().getBinaryName(interfaceElement).toString());
+
+        final List<ExecutableElement> methods = getProxyMethods(interfaceElement);
+        final StringBuilder sb = new StringBuilder();
+        sb.append("// Generated by vproxy-compiler from @GenerateVProxy, do not edit.\n");
+        if (!packageName.isEmpty()) {
+            sb.append("package ").append(packageName).append(";\n\n");
+        }
+        // 全部使用全限定名，避免和接口用到的类型重名
+        sb.append("@SuppressWarnings({\"rawtypes\", \"unchecked\"})\n")
+                .append("public final class ").append(className).append(" implements ").append(interfaceName).append(" {\n\n");
+
+        for (int i = 0; i < methods.size(); i++) {
+            sb.append("    private static final java.lang.reflect.Method m").append(i).append(";\n");
+        }
+        if (!methods.isEmpty()) {
+            appendStaticInitializer(sb, interfaceName, methods);
+        }
+
+        sb.append("\n    private final java.lang.reflect.InvocationHandler handler;\n\n")
+                .append("    public ").append(className).append("(final java.lang.reflect.InvocationHandler handler) {\n")
+                .append("        this.handler = handler;\n")
+                .append("    }\n");
+
+        for (int i = 0; i < methods.size(); i++) {
+            appendMethod(sb, methods.get(i), i);
+        }
+
+        sb.append("\n    private static <T extends Throwable> RuntimeException rethrow(final Throwable t) throws T {\n")
+                .append("        // like the generated dex code, throw what the handler throws as it is\n")
+                .append("        throw (T) t;\n")
+                .append("    }\n\n");
+
+        sb.append("    public static final class Factory extends ").append(PROXY_FACTORY)
+                .append('<').append(interfaceName).append("> {\n")
+                .append("        public static final ").append(PROXY_FACTORY).append('<').append(interfaceName)
+                .append("> INSTANCE = new Factory();\n\n")
+                .append("        private Factory() {\n")
+                .append("        }\n\n")
+                .append("        @Override\n")
+                .append("        public ").append(interfaceName)
+                .append(" newInstance(final java.lang.reflect.InvocationHandler handler) {\n")
+                .append("            return new ").append(className).append("(handler);\n")
+                .append("        }\n")
+                .append("    }\n")
+                .append("}\n");
+
+        try (Writer writer = processingEnv.getFiler().createSourceFile(qualifiedName, annotatedElement).openWriter()) {
+            writer.write(sb.toString());
+        } catch (IOException e) {
+            error(annotatedElement, "Cannot write " + qualifiedName + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * The proxy class is found by the name of its interface, so shrinkers must not rename the
+     * interfaces, including the listed ones which carry no annotation. R8 applies the rules in
+     * {@code META-INF/proguard/} of its inputs.
+     */
+    private void writeKeepRules() {
+        if (keptInterfaces.isEmpty()) {
+            return;
+        }
+        final StringBuilder sb = new StringBuilder("# Generated by vproxy-compiler from @GenerateVProxy, do not edit.\n");
+        for (String interfaceName : keptInterfaces) {
+            sb.append("-keepnames interface ").append(interfaceName).append('\n');
+        }
+        // 文件名区分不同模块生成的规则，合并时不会互相覆盖
+        final String fileName = KEEP_RULES_DIR + "vproxy-" + digest(keptInterfaces.toString()) + ".pro";
+        try (Writer writer = processingEnv.getFiler()
+                .createResource(StandardLocation.CLASS_OUTPUT, "", fileName).openWriter()) {
+            writer.write(sb.toString());
+        } catch (IOException e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                    "Cannot write " + fileName + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * 和运行时生成的代理类一样，在类初始化时一次性查找所有方法
+     */
+    private void appendStaticInitializer(final StringBuilder sb, final String interfaceName,
+                                         final List<ExecutableElement> methods) {
+        sb.append("\n    static {\n")
+                .append("        try {\n");
+        for (int i = 0; i < methods.size(); i++) {
+            final ExecutableElement method = methods.get(i);
+            sb.append("            m").append(i).append(" = ").append(interfaceName).append(".class.getMethod(\"")
+                    .append(method.getSimpleName()).append('"');
+            for (VariableElement parameter : method.getParameters()) {
+                sb.append(", ").append(erasure(parameter.asType())).append(".class");
+            }
+            sb.append(");\n");
+        }
+        sb.append("        } catch (NoSuchMethodException e) {\n")
+                .append("            throw new NoSuchMethodError(e.getMessage());\n")
+                .append("        }\n")
+                .append("    }\n");
+    }
+
+    private void appendMethod(final StringBuilder sb, final ExecutableElement method, final int index) {
+        final TypeMirror returnType = method.getReturnType();
+        final List<? extends VariableElement> parameters = method.getParameters();
+        sb.append("\n    @Override\n")
+                .append("    public ").append(erasure(returnType)).append(' ').append(method.getSimpleName()).append('(');
+        for (int i = 0; i < parameters.size(); i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append("final ").append(erasure(parameters.get(i).asType())).append(" p").append(i);
+        }
+        sb.append(") {\n")
+                .append("        final Object result;\n")
+                .append("        try {\n")
+                .append("            result = handler.invoke(this, m").append(index).append(", ");
+        if (parameters.isEmpty()) {
+            sb.append(EMPTY_ARGS);
+        } else {
+            sb.append("new Object[]{");
+            for (int i = 0; i < parameters.size(); i++) {
+                if (i > 0) {
+                    sb.append(", ");
+                }
+                sb.append('p').append(i);
+            }
+            sb.append('}');
+        }
+        sb.append(");\n")
+                .append("        } catch (Throwable t) {\n")
+                .append("            throw rethrow(t);\n")
+                .append("        }\n");
+        if (returnType.getKind() != TypeKind.VOID) {
+            final String castType = returnType.getKind().isPrimitive()
+                    ? BOXED_TYPES.get(returnType.getKind()) : erasure(returnType);
+            sb.append("        return (").append(castType).append(") result;\n");
+        }
+        sb.append("    }\n");
+    }
+
+    /**
+     * The methods of the interface and its super interfaces, without the duplicates of the same
+     * name and parameters.
+     */
+    private List<ExecutableElement> getProxyMethods(final TypeElement interfaceElement) {
+        final Map<String, ExecutableElement> methods = new LinkedHashMap<>();
+        for (ExecutableElement method : ElementFilter.methodsIn(
+                processingEnv.getElementUtils().getAllMembers(interfaceElement))) {
+            final Set<Modifier> modifiers = method.getModifiers();
+            if (modifiers.contains(Modifier.STATIC) || modifiers.contains(Modifier.PRIVATE)
+                    || method.getEnclosingElement().getKind() != ElementKind.INTERFACE) {
+                continue;
+            }
+            final StringBuilder key = new StringBuilder(method.getSimpleName()).append('(');
+            for (VariableElement parameter : method.getParameters()) {
+                key.append(erasure(parameter.asType())).append(',');
+            }
+            if (!methods.containsKey(key.toString())) {
+                methods.put(key.toString(), method);
+            }
+        }
+        return new ArrayList<>(methods.values());
+    }
+
+    /**
+     * Same as the digest {@code ProxyBuilder} appends to the names of the proxy classes, the
+     * first 64 bits of the SHA-1 in hex.
+     */
+    private static String digest(final String content) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-1").digest(content.getBytes(StandardCharsets.UTF_8));
+            final StringBuilder hex = new StringBuilder(16);
+            for (int i = 0; i < 8; i++) {
+                hex.append(Character.forDigit((digest[i] >> 4) & 0x0F, 16))
+                        .append(Character.forDigit(digest[i] & 0x0F, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private String erasure(final TypeMirror type) {
+        return processingEnv.getTypeUtils().erasure(type).toString();
+    }
+
+    private void error(final Element element, final String message) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+    }
+}
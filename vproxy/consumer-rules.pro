@@ -0,0 +1,9 @@
+# Proxy classes generated at build time by @GenerateVProxy, which ProxyBuilder finds by the name
+# of the interface.
+-keep class **._Proxy_* {
+    <init>(java.lang.reflect.InvocationHandler);
+}
+-keep class **._Proxy_*$Factory {
+    public static ** INSTANCE;
+}
+-keepnames @com.alienhe.art.vproxy.GenerateVProxy interface *
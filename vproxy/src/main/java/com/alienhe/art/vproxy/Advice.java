@@ -0,0 +1,58 @@
+package com.alienhe.art.vproxy;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Annotations marking the hooks of an interceptor, see
+ * {@link ProxyBuilder#newInterceptingProxyInstance}.
+ * <p>
+ * Hooks are public instance methods of a public interceptor class. They apply to the proxied
+ * methods of the given name whose parameter types match, and are compiled into the proxy, which
+ * calls them and the target directly. Several hooks of a method run in the order of their names.
+ *
+ * @author alienhe
+ */
+public final class Advice {
+
+    private Advice() {
+    }
+
+    /**
+     * Runs before the target is called, with the same parameters as the proxied method.
+     * <p>
+     * It returns void, or with {@link #argument()} set, the new value of that argument, typed like
+     * it. For example {@code @Before(value = "getPackageUid", argument = 0) String
+     * rewritePackage(String packageName, int flags, int userId)}.
+     */
+    @Retention(RetentionPolicy.RUNTIME)
+    @Target(ElementType.METHOD)
+    public @interface Before {
+        /**
+         * The name of the proxied method.
+         */
+        String value();
+
+        /**
+         * The index of the argument the hook returns a new value for, -1 for none.
+         */
+        int argument() default -1;
+    }
+
+    /**
+     * Runs after the target returned, with the parameters of the proxied method followed by its
+     * result, and returns the result of the proxied method. For example {@code @After("getPackageUid")
+     * int fixUid(String packageName, int flags, int userId, int uid)}. For void methods it has the
+     * same parameters as the proxied method and returns void.
+     */
+    @Retention(RetentionPolicy.RUNTIME)
+    @Target(ElementType.METHOD)
+    public @interface After {
+        /**
+         * The name of the proxied method.
+         */
+        String value();
+    }
+}
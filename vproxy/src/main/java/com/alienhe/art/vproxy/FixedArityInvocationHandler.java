@@ -0,0 +1,31 @@
+package com.alienhe.art.vproxy;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+
+/**
+ * An {@link InvocationHandler} with entry points specialized by the number of arguments, so that
+ * calls of methods with up to {@link #MAX_ARITY} parameters allocate no {@code Object[]}.
+ * <p>
+ * Methods with more parameters go through {@link #invoke(Object, Method, Object[])}. Primitive
+ * arguments and results are boxed as with a plain {@link InvocationHandler}.
+ * <p>
+ * Only proxies created with {@link ProxyBuilder#newFixedArityProxyInstance} call these entry
+ * points, {@link ProxyBuilder#newProxyInstance} uses it as a plain {@link InvocationHandler}.
+ *
+ * @author alienhe
+ */
+public interface FixedArityInvocationHandler extends InvocationHandler {
+
+    int MAX_ARITY = 4;
+
+    Object invoke0(Object proxy, Method method) throws Throwable;
+
+    Object invoke1(Object proxy, Method method, Object a0) throws Throwable;
+
+    Object invoke2(Object proxy, Method method, Object a0, Object a1) throws Throwable;
+
+    Object invoke3(Object proxy, Method method, Object a0, Object a1, Object a2) throws Throwable;
+
+    Object invoke4(Object proxy, Method method, Object a0, Object a1, Object a2, Object a3) throws Throwable;
+}
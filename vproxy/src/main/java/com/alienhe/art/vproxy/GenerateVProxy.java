@@ -0,0 +1,31 @@
+package com.alienhe.art.vproxy;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Generates the {@link java.lang.reflect.InvocationHandler} proxy classes of interfaces at build
+ * time, with the {@code vproxy-compiler} annotation processor:
+ * <pre>
+ * annotationProcessor project(':vproxy-compiler')
+ * </pre>
+ * The classes are compiled into the app like any other class, so ART compiles them ahead of
+ * time, and {@link ProxyBuilder} uses them instead of generating and loading a dex file.
+ * <p>
+ * Annotate an interface to generate its proxy class, or any class to list interfaces which
+ * cannot be annotated. Only proxies of a single interface are generated. Since the proxy class is
+ * found by the interface name, the processor also generates {@code META-INF/proguard/} rules
+ * keeping the names of all these interfaces.
+ *
+ * @author alienhe
+ */
+@Retention(RetentionPolicy.CLASS)
+@Target(ElementType.TYPE)
+public @interface GenerateVProxy {
+    /**
+     * The interfaces to generate proxy classes of, or none for the annotated interface itself.
+     */
+    Class<?>[] value() default {};
+}
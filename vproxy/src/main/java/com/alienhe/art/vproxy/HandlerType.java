@@ -0,0 +1,55 @@
+package com.alienhe.art.vproxy;
+
+import java.lang.reflect.InvocationHandler;
+
+/**
+ * The handler contract a proxy class is generated for.
+ *
+ * @author alienhe
+ */
+enum HandlerType {
+
+    REFLECTIVE(InvocationHandler.class, "_Proxy_", true),
+
+    INDEXED(IndexedInvocationHandler.class, "_IndexedProxy_", false),
+
+    TYPED(TypedInvocationHandler.class, "_TypedProxy_", false),
+
+    FIXED_ARITY(FixedArityInvocationHandler.class, "_ArityProxy_", true),
+
+    /**
+     * 只有被选中的方法经过 handler，其余方法直接调用 delegate
+     */
+    DELEGATING(InvocationHandler.class, "_DelegateProxy_", true),
+
+    /**
+     * 没有 handler，由 interceptor 的 {@link Advice} hook 包围对 delegate 的直接调用
+     */
+    INTERCEPTING(Object.class, "_InterceptProxy_", false),
+
+    /**
+     * 继承一个类而不是实现接口，未被拦截的方法不覆盖
+     */
+    SUBCLASS(InvocationHandler.class, "_SubclassProxy_", true);
+
+    /**
+     * The type of the handler, or of the interceptor for which the exact class is used instead.
+     */
+    final Class<?> handlerClass;
+
+    /**
+     * 不同类型的代理类使用不同的类名，可以共存于同一个 class loader
+     */
+    final String classNamePrefix;
+
+    /**
+     * Whether the handler identifies methods by {@link java.lang.reflect.Method} rather than by id.
+     */
+    final boolean passesMethod;
+
+    HandlerType(final Class<?> handlerClass, final String classNamePrefix, final boolean passesMethod) {
+        this.handlerClass = handlerClass;
+        this.classNamePrefix = classNamePrefix;
+        this.passesMethod = passesMethod;
+    }
+}
@@ -0,0 +1,22 @@
+package com.alienhe.art.vproxy;
+
+/**
+ * An alternative to {@link java.lang.reflect.InvocationHandler} which receives the id of the
+ * invoked method instead of its {@link java.lang.reflect.Method}, so that dispatching is a
+ * {@code switch} on an int.
+ * <p>
+ * The ids are the indices of the methods in {@link ProxyBuilder#getMethodTable}, which only
+ * depend on the proxied interfaces.
+ *
+ * @author alienhe
+ */
+public interface IndexedInvocationHandler {
+
+    /**
+     * @param proxy    the proxy instance the method was invoked on
+     * @param methodId the index of the invoked method in the method table of the proxied interfaces
+     * @param args     the arguments, with primitives boxed
+     * @return the value to return, boxed for primitive return types
+     */
+    Object invoke(Object proxy, int methodId, Object[] args) throws Throwable;
+}
@@ -0,0 +1,163 @@
+package com.alienhe.art.vproxy;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The {@link Advice} hooks of an interceptor class, matched against the proxied methods.
+ *
+ * @author alienhe
+ */
+final class InterceptorHooks {
+
+    static final class Hook {
+        final Method method;
+
+        /**
+         * 返回新值的参数下标，-1 表示不修改参数；after hook 总是 -1
+         */
+        final int argument;
+
+        Hook(final Method method, final int argument) {
+            this.method = method;
+            this.argument = argument;
+        }
+    }
+
+    final Class<?> interceptorClass;
+
+    private final List<Hook>[] before;
+
+    private final List<Hook>[] after;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private InterceptorHooks(final Class<?> interceptorClass, final int methodCount) {
+        this.interceptorClass = interceptorClass;
+        this.before = new List[methodCount];
+        this.after = new List[methodCount];
+    }
+
+    /**
+     * @throws IllegalArgumentException if the interceptor class is not accessible, or a hook does
+     *                                  not match any proxied method
+     */
+    static InterceptorHooks of(final Class<?> interceptorClass, final Method[] methods) {
+        if (!Modifier.isPublic(interceptorClass.getModifiers())) {
+            throw new IllegalArgumentException(interceptorClass.getName() + " is not public");
+        }
+        final InterceptorHooks hooks = new InterceptorHooks(interceptorClass, methods.length);
+        final Method[] hookMethods = interceptorClass.getMethods();
+        // getMethods() 的顺序不固定，按签名排序使生成的代码稳定
+        Arrays.sort(hookMethods, new Comparator<Method>() {
+            @Override
+            public int compare(final Method m1, final Method m2) {
+                return ProxyMethodTable.signatureOf(m1).compareTo(ProxyMethodTable.signatureOf(m2));
+            }
+        });
+        for (Method hookMethod : hookMethods) {
+            final Advice.Before before = hookMethod.getAnnotation(Advice.Before.class);
+            if (before != null) {
+                checkInstanceMethod(hookMethod);
+                hooks.addBefore(hookMethod, before, methods);
+            }
+            final Advice.After after = hookMethod.getAnnotation(Advice.After.class);
+            if (after != null) {
+                checkInstanceMethod(hookMethod);
+                hooks.addAfter(hookMethod, after, methods);
+            }
+        }
+        return hooks;
+    }
+
+    private static void checkInstanceMethod(final Method hookMethod) {
+        if (Modifier.isStatic(hookMethod.getModifiers())) {
+            throw new IllegalArgumentException("Hook must not be static: " + hookMethod);
+        }
+    }
+
+    private void addBefore(final Method hookMethod, final Advice.Before annotation, final Method[] methods) {
+        boolean matched = false;
+        for (int i = 0; i < methods.length; i++) {
+            final Method method = methods[i];
+            if (!method.getName().equals(annotation.value())
+                    || !Arrays.equals(method.getParameterTypes(), hookMethod.getParameterTypes())) {
+                continue;
+            }
+            final Class<?> expectedReturnType;
+            if (annotation.argument() < 0) {
+                expectedReturnType = void.class;
+            } else if (annotation.argument() < method.getParameterTypes().length) {
+                expectedReturnType = method.getParameterTypes()[annotation.argument()];
+            } else {
+                throw new IllegalArgumentException("No argument " + annotation.argument() + " for hook " + hookMethod);
+            }
+            if (hookMethod.getReturnType() != expectedReturnType) {
+                throw new IllegalArgumentException("Hook " + hookMethod + " must return " + expectedReturnType.getName());
+            }
+            before[i] = add(before[i], new Hook(hookMethod, annotation.argument()));
+            matched = true;
+        }
+        if (!matched) {
+            throw new IllegalArgumentException("No proxied method matches hook " + hookMethod);
+        }
+    }
+
+    private void addAfter(final Method hookMethod, final Advice.After annotation, final Method[] methods) {
+        boolean matched = false;
+        for (int i = 0; i < methods.length; i++) {
+            final Method method = methods[i];
+            final List<Class<?>> expectedParameterTypes = new ArrayList<>(Arrays.asList(method.getParameterTypes()));
+            if (method.getReturnType() != void.class) {
+                expectedParameterTypes.add(method.getReturnType());
+            }
+            if (!method.getName().equals(annotation.value())
+                    || !expectedParameterTypes.equals(Arrays.asList(hookMethod.getParameterTypes()))) {
+                continue;
+            }
+            if (hookMethod.getReturnType() != method.getReturnType()) {
+                throw new IllegalArgumentException("Hook " + hookMethod + " must return " + method.getReturnType().getName());
+            }
+            after[i] = add(after[i], new Hook(hookMethod, -1));
+            matched = true;
+        }
+        if (!matched) {
+            throw new IllegalArgumentException("No proxied method matches hook " + hookMethod);
+        }
+    }
+
+    private static List<Hook> add(final List<Hook> hooks, final Hook hook) {
+        final List<Hook> result = hooks == null ? new ArrayList<Hook>() : hooks;
+        result.add(hook);
+        return result;
+    }
+
+    boolean hasHooks(final int methodIndex) {
+        return before[methodIndex] != null || after[methodIndex] != null;
+    }
+
+    List<Hook> before(final int methodIndex) {
+        return before[methodIndex] == null ? Collections.<Hook>emptyList() : before[methodIndex];
+    }
+
+    List<Hook> after(final int methodIndex) {
+        return after[methodIndex] == null ? Collections.<Hook>emptyList() : after[methodIndex];
+    }
+
+    void describe(final StringBuilder sb) {
+        sb.append('|').append(interceptorClass.getName());
+        for (int i = 0; i < before.length; i++) {
+            for (Hook hook : before(i)) {
+                sb.append('|').append(i).append(" before ").append(hook.argument)
+                        .append(' ').append(ProxyMethodTable.signatureOf(hook.method));
+            }
+            for (Hook hook : after(i)) {
+                sb.append('|').append(i).append(" after ").append(ProxyMethodTable.signatureOf(hook.method));
+            }
+        }
+    }
+}
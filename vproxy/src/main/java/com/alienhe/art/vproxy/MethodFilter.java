@@ -0,0 +1,16 @@
+package com.alienhe.art.vproxy;
+
+import java.lang.reflect.Method;
+
+/**
+ * Chooses the methods of a proxy which go through its handler.
+ *
+ * @author alienhe
+ */
+public interface MethodFilter {
+
+    /**
+     * @return true to intercept the method, false to call the delegate directly
+     */
+    boolean accept(Method method);
+}
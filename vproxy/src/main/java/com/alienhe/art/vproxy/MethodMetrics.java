@@ -0,0 +1,205 @@
+package com.alienhe.art.vproxy;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Invocation counter and handler latency histogram of one proxied method, see
+ * {@link ProxyOptions.Builder#metrics}.
+ * <p>
+ * The generated proxy method calls {@link #enter()} before the handler, the delegate or the hooks
+ * of an interceptor, and {@link #exit(long)} after they returned or
+ * {@link #exitExceptionally(long)} after they threw, so a call which throws is counted but not
+ * timed. Both also record the call into {@link ProxyTrace} while it is started.
+ * <p>
+ * The counters are striped by thread, each stripe on cache lines of its own, so that hot methods
+ * called from several threads do not contend on a single counter. Latencies are counted in
+ * buckets of powers of two nanoseconds.
+ *
+ * @author alienhe
+ */
+public final class MethodMetrics {
+
+    /**
+     * Bucket {@code i} counts the calls whose handler took at least {@code 2^(i-1)} and less than
+     * {@code 2^i} nanoseconds, the last one everything slower (about 4.5 minutes).
+     */
+    public static final int BUCKET_COUNT = 40;
+
+    private static final int MAX_STRIPE_COUNT = 8;
+
+    private static final int STRIPE_COUNT = getStripeCount();
+
+    // 每个 stripe 依次为调用次数、总耗时和各个 bucket，大小按 64 字节的 cache line 对齐
+    private static final int CALLS = 0;
+    private static final int TOTAL_NANOS = 1;
+    private static final int FIRST_BUCKET = 2;
+    private static final int STRIPE_SIZE = (FIRST_BUCKET + BUCKET_COUNT + 7) & ~7;
+
+    private final String method;
+
+    private final int id;
+
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPE_COUNT * STRIPE_SIZE);
+
+    MethodMetrics(final String method, final int id) {
+        this.method = method;
+        this.id = id;
+    }
+
+    /**
+     * Called by the generated proxy before the handler.
+     *
+     * @return the start time to pass to {@link #exit(long)}
+     */
+    public long enter() {
+        cells.incrementAndGet(getStripe() + CALLS);
+        return System.nanoTime();
+    }
+
+    /**
+     * Called by the generated proxy after the handler returned.
+     */
+    public void exit(final long startNanos) {
+        final long nanos = System.nanoTime() - startNanos;
+        final int stripe = getStripe();
+        cells.addAndGet(stripe + TOTAL_NANOS, nanos);
+        cells.incrementAndGet(stripe + FIRST_BUCKET + getBucket(nanos));
+        ProxyTrace.record(id, startNanos, nanos, false);
+    }
+
+    /**
+     * Called by the generated proxy when the handler threw, before rethrowing.
+     */
+    public void exitExceptionally(final long startNanos) {
+        ProxyTrace.record(id, startNanos, System.nanoTime() - startNanos, true);
+    }
+
+    Snapshot snapshot(final boolean reset) {
+        long calls = 0;
+        long totalNanos = 0;
+        final long[] buckets = new long[BUCKET_COUNT];
+        for (int stripe = 0; stripe < cells.length(); stripe += STRIPE_SIZE) {
+            calls += read(stripe + CALLS, reset);
+            totalNanos += read(stripe + TOTAL_NANOS, reset);
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                buckets[i] += read(stripe + FIRST_BUCKET + i, reset);
+            }
+        }
+        return new Snapshot(method, calls, totalNanos, buckets);
+    }
+
+    void reset() {
+        for (int i = 0; i < cells.length(); i++) {
+            cells.set(i, 0);
+        }
+    }
+
+    private long read(final int index, final boolean reset) {
+        return reset ? cells.getAndSet(index, 0) : cells.get(index);
+    }
+
+    private static int getBucket(final long nanos) {
+        return Math.min(Long.SIZE - Long.numberOfLeadingZeros(nanos), BUCKET_COUNT - 1);
+    }
+
+    private static int getStripe() {
+        return ((int) Thread.currentThread().getId() & (STRIPE_COUNT - 1)) * STRIPE_SIZE;
+    }
+
+    private static int getStripeCount() {
+        final int processors = Runtime.getRuntime().availableProcessors();
+        int count = 1;
+        while (count < processors && count < MAX_STRIPE_COUNT) {
+            count <<= 1;
+        }
+        return count;
+    }
+
+    /**
+     * The counters of a method at one point in time.
+     */
+    public static final class Snapshot {
+        private final String method;
+        private final long calls;
+        private final long totalNanos;
+        private final long[] buckets;
+
+        Snapshot(final String method, final long calls, final long totalNanos, final long[] buckets) {
+            this.method = method;
+            this.calls = calls;
+            this.totalNanos = totalNanos;
+            this.buckets = buckets;
+        }
+
+        /**
+         * @return the declaring class and signature of the method, e.g.
+         * {@code android.content.pm.IPackageManager.getPackageUid(Ljava/lang/String;II)I}
+         */
+        public String getMethod() {
+            return method;
+        }
+
+        /**
+         * @return the number of calls, including the ones still running or which threw
+         */
+        public long getCalls() {
+            return calls;
+        }
+
+        /**
+         * @return the number of calls whose handler returned, which are the timed ones
+         */
+        public long getCompletedCalls() {
+            long completed = 0;
+            for (long count : buckets) {
+                completed += count;
+            }
+            return completed;
+        }
+
+        public long getTotalNanos() {
+            return totalNanos;
+        }
+
+        public long getBucket(final int bucket) {
+            return buckets[bucket];
+        }
+
+        /**
+         * @return the exclusive upper bound of the latencies counted in a bucket
+         */
+        public static long getBucketLimitNanos(final int bucket) {
+            return bucket == BUCKET_COUNT - 1 ? Long.MAX_VALUE : 1L << bucket;
+        }
+
+        /**
+         * @param percentile between 0 and 100
+         * @return the upper bound of the bucket containing the percentile of the completed calls,
+         * or 0 if there are none
+         */
+        public long getPercentileNanos(final double percentile) {
+            final long completed = getCompletedCalls();
+            if (completed == 0) {
+                return 0;
+            }
+            final long rank = Math.max(1, (long) Math.ceil(completed * percentile / 100));
+            long count = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                count += buckets[i];
+                if (count >= rank) {
+                    return getBucketLimitNanos(i);
+                }
+            }
+            return getBucketLimitNanos(BUCKET_COUNT - 1);
+        }
+
+        @Override
+        public String toString() {
+            final long completed = getCompletedCalls();
+            return method + " calls=" + calls
+                    + " avg=" + (completed == 0 ? 0 : totalNanos / completed) + "ns"
+                    + " p50<" + getPercentileNanos(50) + "ns"
+                    + " p99<" + getPercentileNanos(99) + "ns";
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package com.alienhe.art.vproxy;
+
+import java.lang.reflect.Method;
+import java.util.BitSet;
+
+/**
+ * The methods of some interfaces a delegating proxy intercepts, see
+ * {@link ProxyBuilder#selectMethods}, or of a class a subclass proxy intercepts, see
+ * {@link ProxyBuilder#selectSuperclassMethods}.
+ * <p>
+ * A selection is immutable and meant to be created once and reused for every proxy instance.
+ *
+ * @author alienhe
+ */
+public final class MethodSelection {
+
+    /**
+     * 接口，或者子类代理的父类
+     */
+    final Class<?>[] classes;
+
+    /**
+     * 被拦截方法的 id，即在 {@link ProxyMethodTable} 中的下标
+     */
+    final BitSet methodIds;
+
+    MethodSelection(final Class<?>[] classes, final Method[] methods, final MethodFilter filter) {
+        this.classes = classes;
+        this.methodIds = new BitSet(methods.length);
+        for (int i = 0; i < methods.length; i++) {
+            if (filter.accept(methods[i])) {
+                methodIds.set(i);
+            }
+        }
+    }
+
+    public boolean contains(final int methodId) {
+        return methodIds.get(methodId);
+    }
+
+    @Override
+    public String toString() {
+        return methodIds.toString();
+    }
+}
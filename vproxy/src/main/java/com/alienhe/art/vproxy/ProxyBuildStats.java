@@ -0,0 +1,166 @@
+package com.alienhe.art.vproxy;
+
+import android.os.Trace;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * How one dex file of proxy classes was built and loaded, see
+ * {@link ProxyBuilderListener#onProxyClassesLoaded}.
+ *
+ * @author alienhe
+ */
+public final class ProxyBuildStats {
+
+    /**
+     * The phases of building and loading a dex file, each also traced as an
+     * {@link android.os.Trace} section when enabled with {@link ProxyBuilder#setTraceEnabled}.
+     */
+    public enum Phase {
+        /**
+         * Generating the classes into the {@code DexBuilder} model.
+         */
+        GENERATE("vproxy:generate"),
+        /**
+         * Sorting the strings, types, protos, fields and methods of the model.
+         */
+        SORT("vproxy:sort"),
+        /**
+         * Encoding the model into the dex format.
+         */
+        ENCODE("vproxy:encode"),
+        /**
+         * Computing the SHA-1 signature, unless skipped, and the Adler32 checksum of the dex file.
+         */
+        CHECKSUM("vproxy:checksum"),
+        /**
+         * Looking the dex file up in the dex cache, locking, writing it and removing stale files.
+         */
+        FILE_IO("vproxy:fileIo"),
+        /**
+         * Creating the class loader, or appending the dex file to the shared one.
+         */
+        CREATE_CLASS_LOADER("vproxy:createClassLoader"),
+        /**
+         * Loading and initializing the proxy classes and their factories.
+         */
+        LOAD_CLASSES("vproxy:loadClasses");
+
+        final String sectionName;
+
+        Phase(final String sectionName) {
+            this.sectionName = sectionName;
+        }
+    }
+
+    private final boolean traceEnabled;
+
+    private final long[] phaseNanos = new long[Phase.values().length];
+
+    private final long startNanos = System.nanoTime();
+
+    private long totalNanos;
+
+    private Phase phase;
+
+    private long phaseStartNanos;
+
+    private boolean dexCacheHit;
+
+    private int dexSize;
+
+    private int methodCount;
+
+    private List<Class<?>> proxyClasses = Collections.emptyList();
+
+    ProxyBuildStats(final boolean traceEnabled) {
+        this.traceEnabled = traceEnabled;
+    }
+
+    void begin(final Phase phase) {
+        if (traceEnabled) {
+            Trace.beginSection(phase.sectionName);
+        }
+        this.phase = phase;
+        phaseStartNanos = System.nanoTime();
+    }
+
+    void end() {
+        phaseNanos[phase.ordinal()] += System.nanoTime() - phaseStartNanos;
+        if (traceEnabled) {
+            Trace.endSection();
+        }
+    }
+
+    void dexCacheHit(final boolean dexCacheHit) {
+        this.dexCacheHit = dexCacheHit;
+    }
+
+    void dexSize(final int dexSize) {
+        this.dexSize = dexSize;
+    }
+
+    void methodCount(final int methodCount) {
+        this.methodCount = methodCount;
+    }
+
+    void finish(final List<Class<?>> proxyClasses) {
+        this.proxyClasses = Collections.unmodifiableList(proxyClasses);
+        totalNanos = System.nanoTime() - startNanos;
+    }
+
+    /**
+     * @return the time spent in a phase, 0 if it was skipped
+     */
+    public long getNanos(final Phase phase) {
+        return phaseNanos[phase.ordinal()];
+    }
+
+    /**
+     * @return the time from the start of the build until the classes were loaded, including the
+     * time between the phases
+     */
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    /**
+     * @return whether the dex file was found in the dex cache, so nothing was generated
+     */
+    public boolean isDexCacheHit() {
+        return dexCacheHit;
+    }
+
+    /**
+     * @return the size of the dex file in bytes
+     */
+    public int getDexSize() {
+        return dexSize;
+    }
+
+    /**
+     * @return the number of methods of the proxied interfaces or superclasses
+     */
+    public int getMethodCount() {
+        return methodCount;
+    }
+
+    public List<Class<?>> getProxyClasses() {
+        return proxyClasses;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("ProxyBuildStats{")
+                .append(proxyClasses)
+                .append(dexCacheHit ? " cached" : " generated")
+                .append(", dexSize=").append(dexSize)
+                .append(", methods=").append(methodCount)
+                .append(", totalNanos=").append(totalNanos);
+        for (Phase p : Phase.values()) {
+            sb.append(", ").append(p.name()).append('=').append(phaseNanos[p.ordinal()]);
+        }
+        return sb.append('}').toString();
+    }
+}
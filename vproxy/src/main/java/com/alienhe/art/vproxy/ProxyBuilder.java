@@ -4,6 +4,7 @@ import android.content.Context;
 import android.os.Build;
 
 import com.alienhe.art.vproxy.dex.AccessFlags;
+import com.alienhe.art.vproxy.dex.Dex;
 import com.alienhe.art.vproxy.dex.DexBuilder;
 import com.alienhe.art.vproxy.dex.DexClassDef;
 import com.alienhe.art.vproxy.dex.DexCode;
@@ -12,124 +13,1470 @@ import com.alienhe.art.vproxy.dex.DexMethod;
 import com.alienhe.art.vproxy.dex.DexProto;
 import com.alienhe.art.vproxy.dex.DexType;
 import com.alienhe.art.vproxy.dex.writer.DexWriter;
+import com.alienhe.art.vproxy.instruction.DexInstruction;
 
 import java.io.File;
 import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
 
 import dalvik.system.DexClassLoader;
+import dalvik.system.InMemoryDexClassLoader;
 
-import static com.alienhe.art.vproxy.instruction.DexInstructions.agetObject;
 import static com.alienhe.art.vproxy.instruction.DexInstructions.aputObject;
 import static com.alienhe.art.vproxy.instruction.DexInstructions.checkCast;
 import static com.alienhe.art.vproxy.instruction.DexInstructions.const16;
 import static com.alienhe.art.vproxy.instruction.DexInstructions.const4;
+import static com.alienhe.art.vproxy.instruction.DexInstructions.constClass;
+import static com.alienhe.art.vproxy.instruction.DexInstructions.constString;
+import static com.alienhe.art.vproxy.instruction.DexInstructions.constWide16;
 import static com.alienhe.art.vproxy.instruction.DexInstructions.igetObject;
+import static com.alienhe.art.vproxy.instruction.DexInstructions.intToByte;
+import static com.alienhe.art.vproxy.instruction.DexInstructions.intToChar;
+import static com.alienhe.art.vproxy.instruction.DexInstructions.intToLong;
+import static com.alienhe.art.vproxy.instruction.DexInstructions.intToShort;
 import static com.alienhe.art.vproxy.instruction.DexInstructions.invokeDirect;
+import static com.alienhe.art.vproxy.instruction.DexInstructions.invokeDirectRange;
 import static com.alienhe.art.vproxy.instruction.DexInstructions.invokeInterface;
+import static com.alienhe.art.vproxy.instruction.DexInstructions.invokeInterfaceRange;
 import static com.alienhe.art.vproxy.instruction.DexInstructions.invokeStatic;
+import static com.alienhe.art.vproxy.instruction.DexInstructions.invokeSuperRange;
 import static com.alienhe.art.vproxy.instruction.DexInstructions.invokeVirtual;
+import static com.alienhe.art.vproxy.instruction.DexInstructions.invokeVirtualRange;
 import static com.alienhe.art.vproxy.instruction.DexInstructions.iputObject;
+import static com.alienhe.art.vproxy.instruction.DexInstructions.moveException;
+import static com.alienhe.art.vproxy.instruction.DexInstructions.moveFrom16;
+import static com.alienhe.art.vproxy.instruction.DexInstructions.moveObjectFrom16;
 import static com.alienhe.art.vproxy.instruction.DexInstructions.moveResult;
 import static com.alienhe.art.vproxy.instruction.DexInstructions.moveResultObject;
+import static com.alienhe.art.vproxy.instruction.DexInstructions.moveResultWide;
+import static com.alienhe.art.vproxy.instruction.DexInstructions.moveWideFrom16;
 import static com.alienhe.art.vproxy.instruction.DexInstructions.newArray;
+import static com.alienhe.art.vproxy.instruction.DexInstructions.newInstance;
 import static com.alienhe.art.vproxy.instruction.DexInstructions.returnObject;
 import static com.alienhe.art.vproxy.instruction.DexInstructions.returnPrimitive;
 import static com.alienhe.art.vproxy.instruction.DexInstructions.returnVoid;
+import static com.alienhe.art.vproxy.instruction.DexInstructions.returnWide;
+import static com.alienhe.art.vproxy.instruction.DexInstructions.sgetObject;
+import static com.alienhe.art.vproxy.instruction.DexInstructions.sputObject;
+import static com.alienhe.art.vproxy.instruction.DexInstructions.throwException;
 
 /**
  * @author alienhe
  */
-public class ProxyBuilder<T> {
+public class ProxyBuilder {
 
     private static final int DEX_VERSION = 0x35;
-    private static final String PROXY_CLASS_NAME_PREFIX = "_Proxy_";
+    /**
+     * 生成代码发生变化时需要修改，使已缓存的 dex 失效
+     */
+    private static final int GENERATOR_REVISION = 7;
+
+    private static final ProxyClassCache PROXY_CLASS_CACHE = new ProxyClassCache();
+
+    /**
+     * 统计调用的代理类代码不同，单独缓存
+     */
+    private static final ProxyClassCache METRICS_PROXY_CLASS_CACHE = new ProxyClassCache();
+
+    private static final ProxyPrewarmer PREWARMER = new ProxyPrewarmer();
+
+    private static volatile ProxyBuilderListener listener;
+
+    private static volatile boolean traceEnabled;
+
+    /**
+     * The arguments passed to handlers for methods without parameters, shared by all calls.
+     */
+    public static final Object[] EMPTY_ARGS = new Object[0];
+
+    /**
+     * Prefix of the methods a subclass proxy generates to call the overridden implementations.
+     */
+    private static final String SUPER_METHOD_PREFIX = "super$";
+
+    /**
+     * The super$ methods {@link #invokeSuper} looked up, by subclass proxy and overridden method.
+     */
+    private static final Map<Class<?>, ConcurrentMap<Method, WeakReference<Method>>> SUPER_METHODS = new WeakHashMap<>();
+
+    private static final String METRICS_CLASS_SUFFIX = "_Metrics";
+
+    private static final String FACTORY_CLASS_SUFFIX = "$Factory";
+
+    /**
+     * The static field of a generated factory class holding its only instance.
+     */
+    private static final String FACTORY_INSTANCE_FIELD = "INSTANCE";
+
+    private final DexBuilder dexBuilder;
+    private final Class<?>[] interfaceClasses;
+    /**
+     * 子类代理的父类，接口代理为 Object
+     */
+    private final Class<?> superClass;
+    private final HandlerType handlerType;
+    /**
+     * 代理类型为 {@link HandlerType#DELEGATING} 或 {@link HandlerType#SUBCLASS} 时被拦截方法的 id，
+     * 否则为 null，子类代理为 null 时拦截所有方法
+     */
+    private final BitSet intercepted;
+    /**
+     * 代理类型为 {@link HandlerType#INTERCEPTING} 时 interceptor 的 hook，否则为 null
+     */
+    private final InterceptorHooks hooks;
 
-    private final DexBuilder dexBuilder = new DexBuilder(DEX_VERSION);
-    private final Class<T> interfaceClass;
-    private final InvocationHandler invocationHandler;
+    private final boolean metrics;
 
     private DexType proxyType;
     private DexClassDef.Builder proxyClassBuilder;
     private DexField handlerField;
-    private DexField methodsField;
-    private Method[] methods;
+    private DexField delegateField;
+    private DexField[] methodFields;
+    /**
+     * 统计调用时各个方法的 {@link MethodMetrics}，子类代理未覆盖的方法没有
+     */
+    private DexField[] metricsFields;
+    private final Method[] methods;
+    private String proxyClassName;
 
-    private ProxyBuilder(final Class<T> interfaceClass, final InvocationHandler invocationHandler) {
-        this.interfaceClass = interfaceClass;
-        this.invocationHandler = invocationHandler;
+    /**
+     * @param classes the interfaces, or the superclass of a subclass proxy
+     * @param variant the intercepted method ids of a delegating or subclass proxy, or the
+     *                interceptor class of an intercepting one
+     * @param metrics whether to count and time the calls, see {@link ProxyMetrics}
+     */
+    private ProxyBuilder(final Class<?>[] classes, final HandlerType handlerType, final Object variant,
+                         final boolean metrics, final DexBuilder dexBuilder) {
+        if (handlerType == HandlerType.SUBCLASS) {
+            this.interfaceClasses = new Class<?>[0];
+            this.superClass = classes[0];
+            this.methods = getOverridableMethods(superClass);
+        } else {
+            this.interfaceClasses = classes;
+            this.superClass = Object.class;
+            this.methods = getProxyMethods(interfaceClasses);
+        }
+        this.handlerType = handlerType;
+        this.dexBuilder = dexBuilder;
+        this.intercepted = handlerType == HandlerType.DELEGATING || handlerType == HandlerType.SUBCLASS
+                ? (BitSet) variant : null;
+        this.hooks = handlerType == HandlerType.INTERCEPTING ? InterceptorHooks.of((Class<?>) variant, methods) : null;
+        this.metrics = metrics;
     }
 
     public static <T> T newProxyInstance(final Context context,
                                          final Class<T> interfaceClass,
                                          final InvocationHandler invocationHandler) {
-        final ProxyBuilder<T> builder = new ProxyBuilder<>(interfaceClass, invocationHandler);
-        builder.prepare();
-        builder.generatedFields();
-        builder.generateConstructor();
-        builder.generateMethods();
+        return newProxyInstance(context, interfaceClass, invocationHandler, ProxyOptions.DEFAULT);
+    }
+
+    public static <T> T newProxyInstance(final Context context,
+                                         final Class<T> interfaceClass,
+                                         final InvocationHandler invocationHandler,
+                                         final ProxyOptions options) {
+        return interfaceClass.cast(newProxyInstance(context, new Class<?>[]{interfaceClass}, invocationHandler, options));
+    }
+
+    public static Object newProxyInstance(final Context context,
+                                          final Class<?>[] interfaceClasses,
+                                          final InvocationHandler invocationHandler) {
+        return newProxyInstance(context, interfaceClasses, invocationHandler, ProxyOptions.DEFAULT);
+    }
+
+    /**
+     * Creates a proxy instance of a single generated class implementing all the given interfaces.
+     */
+    public static Object newProxyInstance(final Context context,
+                                          final Class<?>[] interfaceClasses,
+                                          final InvocationHandler invocationHandler,
+                                          final ProxyOptions options) {
+        return newProxyInstance(context, interfaceClasses, HandlerType.REFLECTIVE, invocationHandler, options);
+    }
+
+    public static <T> T newIndexedProxyInstance(final Context context,
+                                                final Class<T> interfaceClass,
+                                                final IndexedInvocationHandler invocationHandler) {
+        return newIndexedProxyInstance(context, interfaceClass, invocationHandler, ProxyOptions.DEFAULT);
+    }
+
+    public static <T> T newIndexedProxyInstance(final Context context,
+                                                final Class<T> interfaceClass,
+                                                final IndexedInvocationHandler invocationHandler,
+                                                final ProxyOptions options) {
+        return interfaceClass.cast(newIndexedProxyInstance(context, new Class<?>[]{interfaceClass}, invocationHandler, options));
+    }
+
+    public static Object newIndexedProxyInstance(final Context context,
+                                                 final Class<?>[] interfaceClasses,
+                                                 final IndexedInvocationHandler invocationHandler) {
+        return newIndexedProxyInstance(context, interfaceClasses, invocationHandler, ProxyOptions.DEFAULT);
+    }
+
+    /**
+     * Creates a proxy instance which reports the invoked methods by their ids in
+     * {@link #getMethodTable}, instead of by {@link Method}.
+     */
+    public static Object newIndexedProxyInstance(final Context context,
+                                                 final Class<?>[] interfaceClasses,
+                                                 final IndexedInvocationHandler invocationHandler,
+                                                 final ProxyOptions options) {
+        return newProxyInstance(context, interfaceClasses, HandlerType.INDEXED, invocationHandler, options);
+    }
+
+    public static <T> T newTypedProxyInstance(final Context context,
+                                              final Class<T> interfaceClass,
+                                              final TypedInvocationHandler invocationHandler) {
+        return newTypedProxyInstance(context, interfaceClass, invocationHandler, ProxyOptions.DEFAULT);
+    }
+
+    public static <T> T newTypedProxyInstance(final Context context,
+                                              final Class<T> interfaceClass,
+                                              final TypedInvocationHandler invocationHandler,
+                                              final ProxyOptions options) {
+        return interfaceClass.cast(newTypedProxyInstance(context, new Class<?>[]{interfaceClass}, invocationHandler, options));
+    }
+
+    public static Object newTypedProxyInstance(final Context context,
+                                               final Class<?>[] interfaceClasses,
+                                               final TypedInvocationHandler invocationHandler) {
+        return newTypedProxyInstance(context, interfaceClasses, invocationHandler, ProxyOptions.DEFAULT);
+    }
+
+    /**
+     * Creates a proxy instance which passes primitive arguments and results without boxing, see
+     * {@link TypedInvocationHandler}.
+     */
+    public static Object newTypedProxyInstance(final Context context,
+                                               final Class<?>[] interfaceClasses,
+                                               final TypedInvocationHandler invocationHandler,
+                                               final ProxyOptions options) {
+        return newProxyInstance(context, interfaceClasses, HandlerType.TYPED, invocationHandler, options);
+    }
+
+    public static <T> T newFixedArityProxyInstance(final Context context,
+                                                   final Class<T> interfaceClass,
+                                                   final FixedArityInvocationHandler invocationHandler) {
+        return newFixedArityProxyInstance(context, interfaceClass, invocationHandler, ProxyOptions.DEFAULT);
+    }
+
+    public static <T> T newFixedArityProxyInstance(final Context context,
+                                                   final Class<T> interfaceClass,
+                                                   final FixedArityInvocationHandler invocationHandler,
+                                                   final ProxyOptions options) {
+        return interfaceClass.cast(newFixedArityProxyInstance(context, new Class<?>[]{interfaceClass}, invocationHandler, options));
+    }
+
+    public static Object newFixedArityProxyInstance(final Context context,
+                                                    final Class<?>[] interfaceClasses,
+                                                    final FixedArityInvocationHandler invocationHandler) {
+        return newFixedArityProxyInstance(context, interfaceClasses, invocationHandler, ProxyOptions.DEFAULT);
+    }
+
+    /**
+     * Creates a proxy instance which passes up to {@link FixedArityInvocationHandler#MAX_ARITY}
+     * arguments without an {@code Object[]}.
+     */
+    public static Object newFixedArityProxyInstance(final Context context,
+                                                    final Class<?>[] interfaceClasses,
+                                                    final FixedArityInvocationHandler invocationHandler,
+                                                    final ProxyOptions options) {
+        return newProxyInstance(context, interfaceClasses, HandlerType.FIXED_ARITY, invocationHandler, options);
+    }
+
+    private static Object newProxyInstance(final Context context,
+                                           final Class<?>[] interfaceClasses,
+                                           final HandlerType handlerType,
+                                           final Object handler,
+                                           final ProxyOptions options) {
+        return getProxyClass(context, interfaceClasses, handlerType, null, options).newInstance(handler);
+    }
+
+    public static <T> ProxyFactory<T> getProxyFactory(final Context context, final Class<T> interfaceClass) {
+        return getProxyFactory(context, interfaceClass, ProxyOptions.DEFAULT);
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <T> ProxyFactory<T> getProxyFactory(final Context context,
+                                                      final Class<T> interfaceClass,
+                                                      final ProxyOptions options) {
+        return (ProxyFactory<T>) getProxyFactory(context, new Class<?>[]{interfaceClass}, options);
+    }
+
+    public static ProxyFactory<?> getProxyFactory(final Context context, final Class<?>[] interfaceClasses) {
+        return getProxyFactory(context, interfaceClasses, ProxyOptions.DEFAULT);
+    }
+
+    /**
+     * Returns the factory of the proxy class {@link #newProxyInstance(Context, Class[], InvocationHandler)}
+     * instantiates, generating it if needed. Creating instances through the factory skips the
+     * cache lookup too, and is as cheap as {@code new}.
+     */
+    public static ProxyFactory<?> getProxyFactory(final Context context,
+                                                  final Class<?>[] interfaceClasses,
+                                                  final ProxyOptions options) {
+        return getProxyClass(context, interfaceClasses, HandlerType.REFLECTIVE, null, options).factory;
+    }
+
+    /**
+     * Selects the methods a delegating proxy of the given interfaces intercepts. Compute it once
+     * and reuse it, since it inspects all methods of the interfaces.
+     */
+    public static MethodSelection selectMethods(final MethodFilter filter, final Class<?>... interfaceClasses) {
+        checkInterfaces(interfaceClasses);
+        final Class<?>[] interfaces = interfaceClasses.clone();
+        return new MethodSelection(interfaces, getProxyMethods(interfaces), filter);
+    }
+
+    public static Object newDelegatingProxyInstance(final Context context,
+                                                    final MethodSelection intercepted,
+                                                    final Object delegate,
+                                                    final InvocationHandler invocationHandler) {
+        return newDelegatingProxyInstance(context, intercepted, delegate, invocationHandler, ProxyOptions.DEFAULT);
+    }
+
+    /**
+     * Creates a proxy instance implementing the interfaces of {@code intercepted}, which passes
+     * the selected methods to the handler and calls all other methods directly on
+     * {@code delegate}, without reflection.
+     *
+     * @param delegate an implementation of all the interfaces
+     */
+    public static Object newDelegatingProxyInstance(final Context context,
+                                                    final MethodSelection intercepted,
+                                                    final Object delegate,
+                                                    final InvocationHandler invocationHandler,
+                                                    final ProxyOptions options) {
+        checkDelegate(intercepted.classes, delegate);
+        return getProxyClass(context, intercepted.classes, HandlerType.DELEGATING, intercepted.methodIds, options)
+                .newInstance(invocationHandler, delegate);
+    }
+
+    public static <T> T newInterceptingProxyInstance(final Context context,
+                                                     final Class<T> interfaceClass,
+                                                     final T target,
+                                                     final Object interceptor) {
+        return newInterceptingProxyInstance(context, interfaceClass, target, interceptor, ProxyOptions.DEFAULT);
+    }
+
+    public static <T> T newInterceptingProxyInstance(final Context context,
+                                                     final Class<T> interfaceClass,
+                                                     final T target,
+                                                     final Object interceptor,
+                                                     final ProxyOptions options) {
+        return interfaceClass.cast(newInterceptingProxyInstance(context, new Class<?>[]{interfaceClass}, target,
+                interceptor, options));
+    }
+
+    public static Object newInterceptingProxyInstance(final Context context,
+                                                      final Class<?>[] interfaceClasses,
+                                                      final Object target,
+                                                      final Object interceptor) {
+        return newInterceptingProxyInstance(context, interfaceClasses, target, interceptor, ProxyOptions.DEFAULT);
+    }
+
+    /**
+     * Creates a proxy instance which calls {@code target} directly, surrounded by the {@link Advice}
+     * hooks of {@code interceptor}. The hooks are compiled into the proxy class, so neither the
+     * hooks nor the target are called through reflection, and nothing is boxed. Methods without
+     * hooks just call the target.
+     *
+     * @param target      an implementation of all the interfaces
+     * @param interceptor an instance of a public class declaring the hooks
+     */
+    public static Object newInterceptingProxyInstance(final Context context,
+                                                      final Class<?>[] interfaceClasses,
+                                                      final Object target,
+                                                      final Object interceptor,
+                                                      final ProxyOptions options) {
+        checkDelegate(interfaceClasses, target);
+        return getProxyClass(context, interfaceClasses, HandlerType.INTERCEPTING, interceptor.getClass(), options)
+                .newInstance(interceptor, target);
+    }
+
+    /**
+     * Selects the methods a subclass proxy of the given class intercepts, among those
+     * {@link #newSubclassProxyInstance} can override. Abstract methods are always intercepted.
+     */
+    public static MethodSelection selectSuperclassMethods(final MethodFilter filter, final Class<?> superClass) {
+        checkSuperclass(superClass);
+        return new MethodSelection(new Class<?>[]{superClass}, getOverridableMethods(superClass), filter);
+    }
+
+    public static <T> T newSubclassProxyInstance(final Context context,
+                                                 final Class<T> superClass,
+                                                 final InvocationHandler invocationHandler) {
+        return newSubclassProxyInstance(context, superClass, invocationHandler, ProxyOptions.DEFAULT, new Class<?>[0]);
+    }
+
+    /**
+     * Creates an instance of a generated subclass of {@code superClass}, which passes all the
+     * public and protected methods it can override to the handler. The handler is set before the
+     * super constructor runs, so calls made by the constructor are intercepted too.
+     *
+     * @param superClass                a public, non final class with a public or protected
+     *                                  constructor
+     * @param constructorParameterTypes the parameter types of the super constructor to call
+     * @param constructorArgs           the arguments of the super constructor
+     * @see #invokeSuper
+     */
+    public static <T> T newSubclassProxyInstance(final Context context,
+                                                 final Class<T> superClass,
+                                                 final InvocationHandler invocationHandler,
+                                                 final ProxyOptions options,
+                                                 final Class<?>[] constructorParameterTypes,
+                                                 final Object... constructorArgs) {
+        return superClass.cast(newSubclassProxyInstance(context, superClass, null, invocationHandler, options,
+                constructorParameterTypes, constructorArgs));
+    }
+
+    /**
+     * Creates an instance of a generated subclass which only overrides the selected methods, and
+     * the abstract ones. Calls of all other methods are plain virtual calls of the inherited
+     * implementations.
+     *
+     * @param intercepted the methods to intercept, see {@link #selectSuperclassMethods}
+     */
+    public static Object newSubclassProxyInstance(final Context context,
+                                                  final MethodSelection intercepted,
+                                                  final InvocationHandler invocationHandler,
+                                                  final ProxyOptions options,
+                                                  final Class<?>[] constructorParameterTypes,
+                                                  final Object... constructorArgs) {
+        if (intercepted.classes.length != 1 || intercepted.classes[0].isInterface()) {
+            throw new IllegalArgumentException("Not a selection of superclass methods");
+        }
+        return newSubclassProxyInstance(context, intercepted.classes[0], intercepted.methodIds, invocationHandler,
+                options, constructorParameterTypes, constructorArgs);
+    }
+
+    private static Object newSubclassProxyInstance(final Context context,
+                                                   final Class<?> superClass,
+                                                   final BitSet intercepted,
+                                                   final InvocationHandler invocationHandler,
+                                                   final ProxyOptions options,
+                                                   final Class<?>[] constructorParameterTypes,
+                                                   final Object[] constructorArgs) {
+        return getProxyClass(context, new Class<?>[]{superClass}, HandlerType.SUBCLASS, intercepted, options)
+                .newSubclassInstance(constructorParameterTypes, constructorArgs, invocationHandler);
+    }
+
+    /**
+     * Calls the implementation an intercepted method of a subclass proxy overrides, typically from
+     * the handler of a method which only needs to be observed or adjusted. This goes through
+     * reflection, like {@link Method#invoke}, and fails with {@link AbstractMethodError} for
+     * abstract methods.
+     */
+    public static Object invokeSuper(final Object proxy, final Method method, final Object... args) throws Throwable {
+        final Method superMethod = getSuperMethod(proxy.getClass(), method);
+        try {
+            return superMethod.invoke(proxy, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * super$ 方法按代理类缓存。Method 引用代理类，只弱引用，代理类仍可以和它的 class loader 一起回收
+     */
+    private static Method getSuperMethod(final Class<?> proxyType, final Method method) {
+        ConcurrentMap<Method, WeakReference<Method>> superMethods;
+        synchronized (SUPER_METHODS) {
+            superMethods = SUPER_METHODS.get(proxyType);
+            if (superMethods == null) {
+                superMethods = new ConcurrentHashMap<>();
+                SUPER_METHODS.put(proxyType, superMethods);
+            }
+        }
+        final WeakReference<Method> cached = superMethods.get(method);
+        Method superMethod = cached == null ? null : cached.get();
+        if (superMethod == null) {
+            try {
+                superMethod = proxyType.getMethod(SUPER_METHOD_PREFIX + method.getName(), method.getParameterTypes());
+            } catch (NoSuchMethodException e) {
+                throw new AbstractMethodError(method.toString());
+            }
+            superMethods.put(method, new WeakReference<>(superMethod));
+        }
+        return superMethod;
+    }
+
+    private static void checkDelegate(final Class<?>[] interfaceClasses, final Object delegate) {
+        for (Class<?> interfaceClass : interfaceClasses) {
+            if (!interfaceClass.isInstance(delegate)) {
+                throw new IllegalArgumentException("Delegate does not implement " + interfaceClass.getName());
+            }
+        }
+    }
+
+    /**
+     * Reports the phases of generating and loading proxy classes, cache hits and instance
+     * creations to the listener, or stops reporting when it is null.
+     */
+    public static void setListener(final ProxyBuilderListener listener) {
+        ProxyBuilder.listener = listener;
+    }
+
+    static ProxyBuilderListener getListener() {
+        return listener;
+    }
+
+    /**
+     * Marks the phases of generating and loading proxy classes as {@link android.os.Trace}
+     * sections, see {@link ProxyBuildStats.Phase}.
+     */
+    public static void setTraceEnabled(final boolean traceEnabled) {
+        ProxyBuilder.traceEnabled = traceEnabled;
+    }
+
+    private static ProxyClass onCacheHit(final ProxyClass proxyClass) {
+        final ProxyBuilderListener listener = ProxyBuilder.listener;
+        if (listener != null) {
+            listener.onCacheHit(proxyClass.type);
+        }
+        return proxyClass;
+    }
+
+    /**
+     * Returns the cached proxy class, or generates it. Concurrent callers for the same proxy class
+     * wait for a single generation.
+     */
+    private static ProxyClass getProxyClass(final Context context,
+                                            final Class<?>[] interfaceClasses,
+                                            final HandlerType handlerType,
+                                            final Object variant,
+                                            final ProxyOptions options) {
+        final ClassLoader parent = getParentClassLoader();
+        final ProxyClassCache cache = getProxyClassCache(options);
+        final ProxyClass proxyClass = cache.get(interfaceClasses, handlerType, variant, parent);
+        if (proxyClass != null) {
+            return onCacheHit(proxyClass);
+        }
+        if (handlerType == HandlerType.REFLECTIVE && interfaceClasses.length == 1) {
+            PREWARMER.await(interfaceClasses[0], options.metrics);
+            final ProxyClass prewarmedClass = cache.get(interfaceClasses, handlerType, null, parent);
+            if (prewarmedClass != null) {
+                return onCacheHit(prewarmedClass);
+            }
+        }
+        if (handlerType == HandlerType.SUBCLASS) {
+            checkSuperclass(interfaceClasses[0]);
+        } else {
+            checkInterfaces(interfaceClasses);
+        }
+        final Class<?>[] classes = interfaceClasses.clone();
+        return cache.getOrBuild(classes, handlerType, variant, parent, new Callable<ProxyClass>() {
+            @Override
+            public ProxyClass call() {
+                if (handlerType == HandlerType.REFLECTIVE && classes.length == 1 && !options.metrics) {
+                    final ProxyClass packagedClass = findPackagedProxyClass(classes[0], parent);
+                    if (packagedClass != null) {
+                        return cache.putIfAbsent(classes, handlerType, null, parent, packagedClass);
+                    }
+                }
+                return buildProxyClasses(context, Collections.singletonList(classes), handlerType, variant, parent,
+                        options).get(0);
+            }
+        });
+    }
+
+    /**
+     * The methods of a proxy of the given interfaces, indexed by the ids passed to an
+     * {@link IndexedInvocationHandler}.
+     */
+    public static ProxyMethodTable getMethodTable(final Class<?>... interfaceClasses) {
+        checkInterfaces(interfaceClasses);
+        return new ProxyMethodTable(getProxyMethods(interfaceClasses));
+    }
+
+    public static List<Class<?>> newProxyClasses(final Context context,
+                                                 final List<Class<?>> interfaceClasses) {
+        return newProxyClasses(context, interfaceClasses, ProxyOptions.DEFAULT);
+    }
+
+    /**
+     * Generates the proxy classes of several interfaces at once, into a single dex file loaded by a
+     * single class loader. Later {@link #newProxyInstance} calls for these interfaces reuse them.
+     *
+     * @return the proxy classes, in the order of {@code interfaceClasses}
+     */
+    public static List<Class<?>> newProxyClasses(final Context context,
+                                                 final List<Class<?>> interfaceClasses,
+                                                 final ProxyOptions options) {
+        return newProxyClasses(context, interfaceClasses, options, true);
+    }
+
+    public static Future<List<Class<?>>> prewarm(final Context context, final Class<?>... interfaceClasses) {
+        return prewarm(context, ProxyOptions.DEFAULT, interfaceClasses);
+    }
+
+    /**
+     * Generates and loads the proxy classes of the given interfaces in the background, into a
+     * single dex file like {@link #newProxyClasses}, to keep it away from the main thread.
+     * {@link #newProxyInstance} picks up the prewarmed classes, waiting for them if they are
+     * still being generated.
+     *
+     * @return the proxy classes, in the order of {@code interfaceClasses}
+     */
+    public static Future<List<Class<?>>> prewarm(final Context context,
+                                                 final ProxyOptions options,
+                                                 final Class<?>... interfaceClasses) {
+        for (Class<?> interfaceClass : interfaceClasses) {
+            checkInterfaces(interfaceClass);
+        }
+        // 后台任务可能比调用者活得久，不持有 Activity
+        final Context applicationContext = context.getApplicationContext() != null
+                ? context.getApplicationContext() : context;
+        final List<Class<?>> interfaces = Arrays.asList(interfaceClasses.clone());
+        return PREWARMER.submit(interfaces, options.metrics, new Callable<List<Class<?>>>() {
+            @Override
+            public List<Class<?>> call() {
+                return newProxyClasses(applicationContext, interfaces, options, false);
+            }
+        });
+    }
+
+    /**
+     * @param awaitPrewarm whether to wait for pending prewarms of the interfaces, which a prewarm
+     *                     itself must not
+     */
+    private static List<Class<?>> newProxyClasses(final Context context,
+                                                  final List<Class<?>> interfaceClasses,
+                                                  final ProxyOptions options,
+                                                  final boolean awaitPrewarm) {
+        final ClassLoader parent = getParentClassLoader();
+        final ProxyClassCache cache = getProxyClassCache(options);
+        final ProxyClass[] proxyClasses = new ProxyClass[interfaceClasses.size()];
+        final List<Class<?>> missingClasses = new ArrayList<>();
+        for (int i = 0; i < proxyClasses.length; i++) {
+            final Class<?> interfaceClass = interfaceClasses.get(i);
+            proxyClasses[i] = cache.get(new Class<?>[]{interfaceClass}, HandlerType.REFLECTIVE, null, parent);
+            if (proxyClasses[i] == null && awaitPrewarm) {
+                PREWARMER.await(interfaceClass, options.metrics);
+                proxyClasses[i] = cache.get(new Class<?>[]{interfaceClass}, HandlerType.REFLECTIVE, null, parent);
+            }
+            if (proxyClasses[i] != null) {
+                onCacheHit(proxyClasses[i]);
+            } else if (!options.metrics) {
+                final ProxyClass packagedClass = findPackagedProxyClass(interfaceClass, parent);
+                if (packagedClass != null) {
+                    proxyClasses[i] = cache.putIfAbsent(new Class<?>[]{interfaceClass},
+                            HandlerType.REFLECTIVE, null, parent, packagedClass);
+                }
+            }
+            if (proxyClasses[i] == null && !missingClasses.contains(interfaceClass)) {
+                checkInterfaces(interfaceClass);
+                missingClasses.add(interfaceClass);
+            }
+        }
+
+        if (!missingClasses.isEmpty()) {
+            final List<Class<?>[]> missingInterfaces = new ArrayList<>(missingClasses.size());
+            for (Class<?> interfaceClass : missingClasses) {
+                missingInterfaces.add(new Class<?>[]{interfaceClass});
+            }
+            final List<ProxyClass> builtClasses = cache.getOrBuildAll(missingInterfaces, HandlerType.REFLECTIVE, null,
+                    parent, new ProxyClassCache.BatchBuilder() {
+                        @Override
+                        public List<ProxyClass> build(final List<Class<?>[]> interfaceClasses) {
+                            return buildProxyClasses(context, interfaceClasses, HandlerType.REFLECTIVE, null, parent,
+                                    options);
+                        }
+                    });
+            for (int i = 0; i < proxyClasses.length; i++) {
+                if (proxyClasses[i] == null) {
+                    proxyClasses[i] = builtClasses.get(missingClasses.indexOf(interfaceClasses.get(i)));
+                }
+            }
+        }
+
+        final List<Class<?>> result = new ArrayList<>(proxyClasses.length);
+        for (ProxyClass proxyClass : proxyClasses) {
+            result.add(proxyClass.type);
+        }
+        return result;
+    }
+
+    /**
+     * Finds the proxy class of an interface generated at build time, see {@link GenerateVProxy}.
+     * It is named like the class generated at runtime and compiled into the app.
+     *
+     * @return the proxy class, or null if there is none
+     */
+    private static ProxyClass findPackagedProxyClass(final Class<?> interfaceClass, final ClassLoader classLoader) {
+        final String className = getProxyClassName(HandlerType.REFLECTIVE, interfaceClass,
+                Object.class.getName() + ',' + interfaceClass.getName(), false);
+        final Class<?> type;
+        try {
+            type = Class.forName(className, false, classLoader);
+        } catch (ClassNotFoundException e) {
+            return null;
+        }
+        if (!interfaceClass.isAssignableFrom(type)) {
+            return null;
+        }
+        try {
+            final ProxyFactory<?> factory = (ProxyFactory<?>) Class.forName(className + FACTORY_CLASS_SUFFIX, true, classLoader)
+                    .getField(FACTORY_INSTANCE_FIELD).get(null);
+            return ProxyClass.of(type, factory, InvocationHandler.class);
+        } catch (ClassNotFoundException | NoSuchFieldException | IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * The methods of all interfaces sorted by signature, without the duplicates inherited from or
+     * shared by several of them.
+     */
+    private static Method[] getProxyMethods(final Class<?>[] interfaceClasses) {
+        final Map<String, Method> methods = new TreeMap<>();
+        for (Class<?> interfaceClass : interfaceClasses) {
+            for (Method method : interfaceClass.getMethods()) {
+                final String signature = ProxyMethodTable.signatureOf(method);
+                if (!methods.containsKey(signature)) {
+                    methods.put(signature, method);
+                }
+            }
+        }
+        return methods.values().toArray(new Method[0]);
+    }
+
+    /**
+     * The methods a subclass of the given class can override, sorted by signature: the most
+     * derived declaration of each public or protected, non final instance method, and the
+     * interface methods an abstract class leaves unimplemented.
+     */
+    private static Method[] getOverridableMethods(final Class<?> superClass) {
+        final Map<String, Method> methods = new TreeMap<>();
+        // 按名称和参数去重，子类的声明（包括协变返回值和 final）优先于父类
+        final Set<String> declared = new HashSet<>();
+        for (Class<?> c = superClass; c != null; c = c.getSuperclass()) {
+            for (Method method : c.getDeclaredMethods()) {
+                if (method.isSynthetic() || Modifier.isPrivate(method.getModifiers())
+                        || !declared.add(getNameAndParameters(method))) {
+                    continue;
+                }
+                if (isOverridable(method)) {
+                    methods.put(ProxyMethodTable.signatureOf(method), method);
+                }
+            }
+        }
+        if (Modifier.isAbstract(superClass.getModifiers())) {
+            for (Method method : superClass.getMethods()) {
+                if (method.getDeclaringClass().isInterface() && declared.add(getNameAndParameters(method))) {
+                    methods.put(ProxyMethodTable.signatureOf(method), method);
+                }
+            }
+        }
+        return methods.values().toArray(new Method[0]);
+    }
+
+    private static boolean isOverridable(final Method method) {
+        final int modifiers = method.getModifiers();
+        if (Modifier.isStatic(modifiers) || Modifier.isFinal(modifiers)) {
+            return false;
+        }
+        if (Modifier.isPublic(modifiers)) {
+            return true;
+        }
+        // protected 方法需要通过 getDeclaredMethod 从声明它的类查找，这个类必须可以访问；不代理 clone 和 finalize
+        return Modifier.isProtected(modifiers)
+                && Modifier.isPublic(method.getDeclaringClass().getModifiers())
+                && method.getDeclaringClass() != Object.class;
+    }
+
+    private static String getNameAndParameters(final Method method) {
+        final String signature = ProxyMethodTable.signatureOf(method);
+        return signature.substring(0, signature.indexOf(')') + 1);
+    }
+
+    /**
+     * The super constructors a subclass proxy forwards to, sorted by descriptor.
+     */
+    private static List<Constructor<?>> getSuperConstructors(final Class<?> superClass) {
+        final Map<String, Constructor<?>> constructors = new TreeMap<>();
+        for (Constructor<?> constructor : superClass.getDeclaredConstructors()) {
+            final int modifiers = constructor.getModifiers();
+            if (constructor.isSynthetic() || !(Modifier.isPublic(modifiers) || Modifier.isProtected(modifiers))) {
+                continue;
+            }
+            final StringBuilder descriptor = new StringBuilder();
+            for (Class<?> parameterType : constructor.getParameterTypes()) {
+                descriptor.append(DexBuilder.getTypeDescription(parameterType));
+            }
+            constructors.put(descriptor.toString(), constructor);
+        }
+        return new ArrayList<>(constructors.values());
+    }
+
+    private static void checkSuperclass(final Class<?> superClass) {
+        final int modifiers = superClass.getModifiers();
+        if (superClass.isInterface() || superClass.isArray() || superClass.isPrimitive()) {
+            throw new IllegalArgumentException(superClass.getName() + " is not a class");
+        }
+        // 代理类由另一个 class loader 加载，不在同一个运行时包中，父类必须是 public 的
+        if (!Modifier.isPublic(modifiers) || Modifier.isFinal(modifiers)) {
+            throw new IllegalArgumentException(superClass.getName() + " is not public or is final");
+        }
+        if (getSuperConstructors(superClass).isEmpty()) {
+            throw new IllegalArgumentException(superClass.getName() + " has no public or protected constructor");
+        }
+    }
+
+    private static void checkInterfaces(final Class<?>... interfaceClasses) {
+        if (interfaceClasses.length == 0) {
+            throw new IllegalArgumentException("No interface to proxy");
+        }
+        for (int i = 0; i < interfaceClasses.length; i++) {
+            if (!interfaceClasses[i].isInterface()) {
+                throw new IllegalArgumentException(interfaceClasses[i].getName() + " is not an interface");
+            }
+            for (int j = 0; j < i; j++) {
+                if (interfaceClasses[i] == interfaceClasses[j]) {
+                    throw new IllegalArgumentException("Repeated interface: " + interfaceClasses[i].getName());
+                }
+            }
+        }
+    }
+
+    private static List<ProxyClass> buildProxyClasses(final Context context,
+                                                      final List<Class<?>[]> interfaceClasses,
+                                                      final HandlerType handlerType,
+                                                      final Object variant,
+                                                      final ClassLoader parent,
+                                                      final ProxyOptions options) {
+        final DexBuilder dexBuilder = new DexBuilder(DEX_VERSION);
+        final List<ProxyBuilder> builders = new ArrayList<>(interfaceClasses.size());
+        final ProxyBuildStats stats = new ProxyBuildStats(traceEnabled);
+        final Set<String> classNames = new HashSet<>();
+        int methodCount = 0;
+        for (Class<?>[] interfaces : interfaceClasses) {
+            final ProxyBuilder builder = new ProxyBuilder(interfaces, handlerType, variant, options.metrics, dexBuilder);
+            if (!classNames.add(builder.getProxyClassName())) {
+                throw new IllegalArgumentException("Duplicate proxy class " + builder.getProxyClassName()
+                        + " of " + Arrays.toString(interfaces));
+            }
+            builders.add(builder);
+            methodCount += builder.methods.length;
+        }
+        stats.methodCount(methodCount);
+
+        final List<ProxyClass> proxyClasses = loadDex(context, dexBuilder, builders, parent, options, stats);
+        for (int i = 0; i < proxyClasses.size(); i++) {
+            proxyClasses.set(i, getProxyClassCache(options).putIfAbsent(interfaceClasses.get(i), handlerType, variant, parent,
+                    proxyClasses.get(i)));
+        }
+
+        final ProxyBuilderListener listener = ProxyBuilder.listener;
+        if (listener != null) {
+            final List<Class<?>> types = new ArrayList<>(proxyClasses.size());
+            for (ProxyClass proxyClass : proxyClasses) {
+                types.add(proxyClass.type);
+            }
+            stats.finish(types);
+            listener.onProxyClassesLoaded(stats);
+        }
+        return proxyClasses;
+    }
+
+    private static ProxyClassCache getProxyClassCache(final ProxyOptions options) {
+        return options.metrics ? METRICS_PROXY_CLASS_CACHE : PROXY_CLASS_CACHE;
+    }
+
+    private static List<ProxyClass> loadDex(final Context context,
+                                            final DexBuilder dexBuilder,
+                                            final List<ProxyBuilder> builders,
+                                            final ClassLoader parent,
+                                            final ProxyOptions options,
+                                            final ProxyBuildStats stats) {
+        if (options.inMemory && Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            final ByteBuffer dex = generateDex(dexBuilder, builders, options, stats);
+            final ClassLoader classLoader;
+            stats.begin(ProxyBuildStats.Phase.CREATE_CLASS_LOADER);
+            try {
+                classLoader = new InMemoryDexClassLoader(dex, parent);
+            } finally {
+                stats.end();
+            }
+            return loadProxyClasses(builders, classLoader, stats);
+        }
+
+        final File proxyDir = new File(getCodeCacheDir(context), "proxies");
+        final String dexName = getDexName(builders);
+        final File dexFile;
+        final boolean cached;
+        stats.begin(ProxyBuildStats.Phase.FILE_IO);
+        try {
+            final StringBuilder description = new StringBuilder();
+            description.append(GENERATOR_REVISION).append('|')
+                    .append(DEX_VERSION);
+            for (ProxyBuilder builder : builders) {
+                builder.describe(description);
+            }
+            dexFile = ProxyDexCache.getDexFile(proxyDir, dexName, ProxyDexCache.fingerprint(description));
+            cached = ProxyDexCache.isValid(dexFile);
+        } finally {
+            stats.end();
+        }
+        if (cached) {
+            try {
+                return loadCachedDex(context, builders, dexFile, parent, options, stats);
+            } catch (RuntimeException ignored) {
+                // broken cache, generate it again
+            }
+        }
+
+        // 多个进程共享 code_cache，由持有锁的进程生成并优化，其他进程等待后直接加载
+        stats.begin(ProxyBuildStats.Phase.FILE_IO);
+        final ProxyDexCache.Lock lock = ProxyDexCache.lock(proxyDir, dexName);
+        try {
+            final boolean generatedMeanwhile;
+            try {
+                generatedMeanwhile = ProxyDexCache.isValid(dexFile);
+            } finally {
+                stats.end();
+            }
+            if (generatedMeanwhile) {
+                try {
+                    return loadCachedDex(context, builders, dexFile, parent, options, stats);
+                } catch (RuntimeException ignored) {
+                    // broken cache, generate it again
+                }
+            }
+
+            final ByteBuffer dex = generateDex(dexBuilder, builders, options, stats);
+            stats.begin(ProxyBuildStats.Phase.FILE_IO);
+            try {
+                DexWriter.write(dex, dexFile);
+                ProxyDexCache.removeStale(dexFile, dexName, getCodeCacheDir(context));
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            } finally {
+                stats.end();
+            }
+            stats.dexCacheHit(false);
+            return loadProxyClasses(context, builders, dexFile, parent, options, stats);
+        } finally {
+            lock.close();
+        }
+    }
+
+    private static List<ProxyClass> loadCachedDex(final Context context,
+                                                  final List<ProxyBuilder> builders,
+                                                  final File dexFile,
+                                                  final ClassLoader parent,
+                                                  final ProxyOptions options,
+                                                  final ProxyBuildStats stats) {
+        stats.dexCacheHit(true);
+        stats.dexSize((int) dexFile.length());
+        return loadProxyClasses(context, builders, dexFile, parent, options, stats);
+    }
+
+    /**
+     * Generates the proxy classes and encodes them into a complete dex file.
+     */
+    private static ByteBuffer generateDex(final DexBuilder dexBuilder,
+                                          final List<ProxyBuilder> builders,
+                                          final ProxyOptions options,
+                                          final ProxyBuildStats stats) {
+        stats.begin(ProxyBuildStats.Phase.GENERATE);
+        try {
+            for (ProxyBuilder builder : builders) {
+                builder.generate();
+            }
+        } finally {
+            stats.end();
+        }
+
+        final Dex dex;
+        stats.begin(ProxyBuildStats.Phase.SORT);
+        try {
+            dex = dexBuilder.build();
+        } finally {
+            stats.end();
+        }
+
+        final ByteBuffer buffer;
+        stats.begin(ProxyBuildStats.Phase.ENCODE);
+        try {
+            buffer = DexWriter.encode(dex);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            stats.end();
+        }
+
+        stats.begin(ProxyBuildStats.Phase.CHECKSUM);
+        try {
+            DexWriter.writeChecksums(buffer, !options.skipSignature);
+        } finally {
+            stats.end();
+        }
+        stats.dexSize(buffer.remaining());
+        return buffer;
+    }
+
+    private static List<ProxyClass> loadProxyClasses(final Context context,
+                                                     final List<ProxyBuilder> builders,
+                                                     final File dexFile,
+                                                     final ClassLoader parent,
+                                                     final ProxyOptions options,
+                                                     final ProxyBuildStats stats) {
+        ClassLoader classLoader = null;
+        stats.begin(ProxyBuildStats.Phase.CREATE_CLASS_LOADER);
+        try {
+            if (options.shareClassLoader) {
+                final List<String> classNames = new ArrayList<>(builders.size() * 2);
+                for (ProxyBuilder builder : builders) {
+                    classNames.add(builder.getProxyClassName());
+                    if (builder.handlerType == HandlerType.REFLECTIVE) {
+                        classNames.add(builder.getProxyClassName() + FACTORY_CLASS_SUFFIX);
+                    }
+                }
+                classLoader = SharedProxyClassLoader.add(dexFile, getCodeCacheDir(context), classNames, parent);
+            }
+            if (classLoader == null) {
+                classLoader = newDexClassLoader(context, dexFile, parent);
+            }
+        } finally {
+            stats.end();
+        }
+        return loadProxyClasses(builders, classLoader, stats);
+    }
+
+    private static List<ProxyClass> loadProxyClasses(final List<ProxyBuilder> builders,
+                                                     final ClassLoader classLoader,
+                                                     final ProxyBuildStats stats) {
+        final List<ProxyClass> proxyClasses = new ArrayList<>(builders.size());
+        stats.begin(ProxyBuildStats.Phase.LOAD_CLASSES);
+        try {
+            for (ProxyBuilder builder : builders) {
+                proxyClasses.add(builder.loadProxyClass(classLoader));
+            }
+        } finally {
+            stats.end();
+        }
+        return proxyClasses;
+    }
+
+    /**
+     * A batch shares one dex file, named after the proxy classes it contains.
+     */
+    private static String getDexName(final List<ProxyBuilder> builders) {
+        if (builders.size() == 1) {
+            return builders.get(0).getProxyClassName();
+        }
+        final StringBuilder names = new StringBuilder();
+        for (ProxyBuilder builder : builders) {
+            names.append(builder.getProxyClassName()).append(';');
+        }
+        return "batch-" + ProxyDexCache.digest(names);
+    }
+
+    private void describe(final StringBuilder sb) {
+        sb.append('|').append(handlerType);
+        if (intercepted != null) {
+            sb.append('|').append(intercepted);
+        }
+        if (hooks != null) {
+            hooks.describe(sb);
+        }
+        if (metrics) {
+            sb.append("|metrics");
+        }
+        for (Class<?> interfaceClass : interfaceClasses) {
+            sb.append('|').append(interfaceClass.getName());
+        }
+        if (handlerType == HandlerType.SUBCLASS) {
+            sb.append('|').append(superClass.getName());
+            for (Constructor<?> constructor : getSuperConstructors(superClass)) {
+                sb.append("|<init>(");
+                for (Class<?> parameterType : constructor.getParameterTypes()) {
+                    sb.append(parameterType.getName()).append(',');
+                }
+                sb.append(')');
+            }
+        }
+        for (Method method : methods) {
+            sb.append('|').append(method.getReturnType().getName())
+                    .append(' ').append(method.getName()).append('(');
+            for (Class<?> parameterType : method.getParameterTypes()) {
+                sb.append(parameterType.getName()).append(',');
+            }
+            sb.append(')');
+            if (handlerType == HandlerType.SUBCLASS && Modifier.isAbstract(method.getModifiers())) {
+                sb.append(" abstract");
+            }
+        }
+    }
+
+    private void generate() {
+        prepare();
+        generatedFields();
+        if (handlerType.passesMethod) {
+            generateMethodFields();
+        }
+        if (metrics) {
+            metricsFields = new DexField[methods.length];
+        }
+        generateConstructor();
+        generateMethods();
+        // 在生成方法之后，此时才知道需要哪些 metrics 字段
+        if (handlerType.passesMethod || metrics) {
+            generateStaticInitializer();
+        }
+
+        proxyClassBuilder.build();
+
+        if (handlerType == HandlerType.REFLECTIVE) {
+            generateFactory();
+        }
+    }
+
+    /**
+     * 生成 {@link ProxyFactory} 的子类，直接 new-instance 创建代理对象，唯一的实例保存在静态字段中
+     */
+    private void generateFactory() {
+        final DexType factoryType = dexBuilder.addType(getFactoryTypeDescription());
+        final DexType superType = dexBuilder.addType(ProxyFactory.class);
+        final DexType voidType = dexBuilder.addType("V");
+        final DexClassDef.Builder factoryClassBuilder = dexBuilder.addClass()
+                .type(factoryType)
+                .accessFlags(AccessFlags.fromValue(AccessFlags.ACC_PUBLIC, AccessFlags.ACC_FINAL))
+                .superClass(superType);
+
+        final DexField instanceField = dexBuilder.addField(factoryType,
+                dexBuilder.addString(FACTORY_INSTANCE_FIELD),
+                superType);
+        factoryClassBuilder.staticField(instanceField,
+                AccessFlags.fromValue(AccessFlags.ACC_PUBLIC, AccessFlags.ACC_STATIC, AccessFlags.ACC_FINAL));
+
+        final DexMethod ctr = dexBuilder.addMethod(factoryType, dexBuilder.addString("<init>"),
+                dexBuilder.addProto(voidType, Collections.<DexType>emptyList()));
+        final DexMethod superCtr = dexBuilder.addMethod(superType, dexBuilder.addString("<init>"),
+                dexBuilder.addProto(voidType, Collections.<DexType>emptyList()));
+        factoryClassBuilder.directMethod(ctr, AccessFlags.fromValue(AccessFlags.ACC_PRIVATE, AccessFlags.ACC_CONSTRUCTOR),
+                DexCode.newBuilder()
+                        .registersSize(1)
+                        .insSize(1)
+                        .outsSize(1)
+                        .instruction(invokeDirect(0, superCtr))
+                        .instruction(returnVoid())
+                        .build());
+
+        final DexMethod clinit = dexBuilder.addMethod(factoryType, dexBuilder.addString("<clinit>"),
+                dexBuilder.addProto(voidType, Collections.<DexType>emptyList()));
+        factoryClassBuilder.directMethod(clinit, AccessFlags.fromValue(AccessFlags.ACC_STATIC, AccessFlags.ACC_CONSTRUCTOR),
+                DexCode.newBuilder()
+                        .registersSize(1)
+                        .insSize(0)
+                        .outsSize(1)
+                        .instruction(newInstance(0, factoryType))
+                        .instruction(invokeDirect(0, ctr))
+                        .instruction(sputObject(0, instanceField))
+                        .instruction(returnVoid())
+                        .build());
+
+        // 泛型擦除后的签名为 newInstance(InvocationHandler)Object
+        final DexMethod newInstanceMethod = dexBuilder.addMethod(factoryType, dexBuilder.addString("newInstance"),
+                dexBuilder.addProto(dexBuilder.addType(Object.class),
+                        Collections.singletonList(dexBuilder.addType(InvocationHandler.class))));
+        final DexMethod proxyCtr = dexBuilder.addMethod(proxyType, dexBuilder.addString("<init>"),
+                dexBuilder.addProto(voidType, Collections.singletonList(dexBuilder.addType(InvocationHandler.class))));
+        final int rProxy = 0;
+        final int rHandler = 2;
+        factoryClassBuilder.virtualMethod(newInstanceMethod, AccessFlags.fromValue(AccessFlags.ACC_PUBLIC),
+                DexCode.newBuilder()
+                        .registersSize(3)
+                        .insSize(2)
+                        .outsSize(2)
+                        .instruction(newInstance(rProxy, proxyType))
+                        .instruction(invokeDirect(rProxy, rHandler, proxyCtr))
+                        .instruction(returnObject(rProxy))
+                        .build());
+
+        factoryClassBuilder.build();
+    }
+
+    private void prepare() {
+        this.proxyType = dexBuilder.addType(getProxyTypeDescription());
+
+        this.proxyClassBuilder = dexBuilder.addClass()
+                .type(proxyType)
+                .accessFlags(AccessFlags.fromValue(AccessFlags.ACC_PUBLIC))
+                .superClass(dexBuilder.addType(superClass));
+        for (Class<?> interfaceClass : interfaceClasses) {
+            proxyClassBuilder.implementedInterface(dexBuilder.addType(interfaceClass));
+        }
+    }
+
+    private void generatedFields() {
+        handlerField = dexBuilder.addField(proxyType,
+                dexBuilder.addString("handler"),
+                dexBuilder.addType(getHandlerClass()));
+        proxyClassBuilder.instanceField(handlerField, AccessFlags.fromValue(AccessFlags.ACC_PRIVATE));
+
+        if (handlerType == HandlerType.DELEGATING || handlerType == HandlerType.INTERCEPTING) {
+            // 校验器把接口类型视为 Object，调用 delegate 时无需 check-cast
+            delegateField = dexBuilder.addField(proxyType,
+                    dexBuilder.addString("delegate"),
+                    dexBuilder.addType(Object.class));
+            proxyClassBuilder.instanceField(delegateField, AccessFlags.fromValue(AccessFlags.ACC_PRIVATE));
+        }
+    }
+
+    private Class<?> getHandlerClass() {
+        return hooks != null ? hooks.interceptorClass : handlerType.handlerClass;
+    }
+
+    private boolean isIntercepted(final int methodIndex) {
+        if (hooks != null) {
+            return hooks.hasHooks(methodIndex);
+        }
+        if (intercepted == null || intercepted.get(methodIndex)) {
+            return true;
+        }
+        // 子类代理必须实现父类的抽象方法，总是交给 handler
+        return handlerType == HandlerType.SUBCLASS && Modifier.isAbstract(methods[methodIndex].getModifiers());
+    }
+
+    private void generateMethodFields() {
+        methodFields = new DexField[methods.length];
+        for (int i = 0; i < methods.length; i++) {
+            if (!isIntercepted(i)) {
+                continue;
+            }
+            methodFields[i] = dexBuilder.addField(proxyType,
+                    dexBuilder.addString("m" + i),
+                    dexBuilder.addType(Method.class));
+            proxyClassBuilder.staticField(methodFields[i], AccessFlags.fromValue(AccessFlags.ACC_PRIVATE, AccessFlags.ACC_STATIC));
+        }
+    }
+
+    /**
+     * 和 java.lang.reflect.Proxy 一样，在 &lt;clinit&gt; 中一次性查找所有被代理的方法并存入静态字段
+     */
+    private void generateStaticInitializer() {
+        final DexType classType = dexBuilder.addType(Class.class);
+        final DexMethod clinit = dexBuilder.addMethod(proxyType,
+                dexBuilder.addString("<clinit>"),
+                dexBuilder.addProto(dexBuilder.addType("V"), Collections.<DexType>emptyList()));
+        final DexMethod getMethod = dexBuilder.addMethod(classType,
+                dexBuilder.addString("getMethod"),
+                dexBuilder.addProto(dexBuilder.addType(Method.class), Arrays.asList(
+                        dexBuilder.addType(String.class),
+                        dexBuilder.addType(Class[].class))));
+        // 子类代理的 protected 方法
+        final DexMethod getDeclaredMethod = dexBuilder.addMethod(classType,
+                dexBuilder.addString("getDeclaredMethod"),
+                dexBuilder.addProto(dexBuilder.addType(Method.class), Arrays.asList(
+                        dexBuilder.addType(String.class),
+                        dexBuilder.addType(Class[].class))));
+
+        final int rOwner = 0;
+        final int rName = 1;
+        final int rIndex = 2;
+        final int rParamArray = 3;
+        final int rParamType = 4;
+        final int rMethod = 5;
+        final DexCode.Builder builder = DexCode.newBuilder()
+                .registersSize(6)
+                .insSize(0)
+                .outsSize(3);
+        for (int i = 0; i < methods.length; i++) {
+            if (methodFields == null || methodFields[i] == null) {
+                continue;
+            }
+            final Method method = methods[i];
+            final Class<?>[] parameterTypes = method.getParameterTypes();
+            builder.instruction(constClass(rOwner, dexBuilder.addType(getMethodOwner(method))))
+                    .instruction(constString(rName, dexBuilder.addString(method.getName())))
+                    .instruction(const16(rIndex, parameterTypes.length))
+                    .instruction(newArray(rParamArray, rIndex, dexBuilder.addType(Class[].class)));
+            for (int j = 0; j < parameterTypes.length; j++) {
+                final Class<?> parameterType = parameterTypes[j];
+                builder.instruction(const16(rIndex, j));
+                if (parameterType.isPrimitive()) {
+                    // const-class 不能用于基本类型，改为读取 Integer.TYPE 等字段
+                    builder.instruction(sgetObject(rParamType, dexBuilder.addField(
+                            dexBuilder.addType(getBoxedType(parameterType)),
+                            dexBuilder.addString("TYPE"),
+                            classType)));
+                } else {
+                    builder.instruction(constClass(rParamType, dexBuilder.addType(parameterType)));
+                }
+                builder.instruction(aputObject(rParamType, rParamArray, rIndex));
+            }
+            builder.instruction(invokeVirtual(rOwner, rName, rParamArray,
+                    Modifier.isPublic(method.getModifiers()) ? getMethod : getDeclaredMethod))
+                    .instruction(moveResultObject(rMethod))
+                    .instruction(sputObject(rMethod, methodFields[i]));
+        }
+        if (metricsFields != null) {
+            final DexMethod register = dexBuilder.addMethod(dexBuilder.addType(ProxyMetrics.class),
+                    dexBuilder.addString("register"),
+                    dexBuilder.addProto(dexBuilder.addType(MethodMetrics.class),
+                            Collections.singletonList(dexBuilder.addType(String.class))));
+            for (int i = 0; i < methods.length; i++) {
+                if (metricsFields[i] == null) {
+                    continue;
+                }
+                final Method method = methods[i];
+                builder.instruction(constString(rName, dexBuilder.addString(
+                        method.getDeclaringClass().getName() + '.' + ProxyMethodTable.signatureOf(method))))
+                        .instruction(invokeStatic(rName, register))
+                        .instruction(moveResultObject(rMethod))
+                        .instruction(sputObject(rMethod, metricsFields[i]));
+            }
+        }
+        builder.instruction(returnVoid());
 
-        builder.proxyClassBuilder.build();
-        builder.writeDex(context);
-        return builder.createProxyInstance(context);
+        proxyClassBuilder.directMethod(clinit, AccessFlags.fromValue(AccessFlags.ACC_STATIC, AccessFlags.ACC_CONSTRUCTOR), builder.build());
     }
 
-    private void prepare() {
-        this.proxyType = dexBuilder.addType(getProxyTypeDescription());
-
-        final DexType objectType = dexBuilder.addType(Object.class);
-        this.proxyClassBuilder = dexBuilder.addClass()
-                .type(proxyType)
-                .accessFlags(AccessFlags.fromValue(AccessFlags.ACC_PUBLIC))
-                .superClass(objectType)
-                .implementedInterface(dexBuilder.addType(interfaceClass));
+    /**
+     * The class to look the method up from, which is one of the proxied interfaces or the
+     * superclass when the declaring class is not accessible to the proxy class.
+     */
+    private Class<?> getMethodOwner(final Method method) {
+        final Class<?> declaringClass = method.getDeclaringClass();
+        if (Modifier.isPublic(declaringClass.getModifiers()) || !Modifier.isPublic(method.getModifiers())) {
+            return declaringClass;
+        }
+        if (handlerType == HandlerType.SUBCLASS) {
+            return superClass;
+        }
+        for (Class<?> interfaceClass : interfaceClasses) {
+            if (declaringClass.isAssignableFrom(interfaceClass)) {
+                return interfaceClass;
+            }
+        }
+        return declaringClass;
     }
 
-    private void generatedFields() {
-        handlerField = dexBuilder.addField(proxyType,
-                dexBuilder.addString("handler"),
-                dexBuilder.addType(InvocationHandler.class));
-        proxyClassBuilder.instanceField(handlerField, AccessFlags.fromValue(AccessFlags.ACC_PRIVATE));
-
-        methodsField = dexBuilder.addField(proxyType,
-                dexBuilder.addString("methods"),
-                dexBuilder.addType(Method[].class));
-        proxyClassBuilder.instanceField(methodsField, AccessFlags.fromValue(AccessFlags.ACC_PRIVATE));
+    /**
+     * @return the parameters of the only constructor, or null for subclass proxies which have one
+     * per super constructor
+     */
+    private Class<?>[] getConstructorParameterTypes() {
+        if (handlerType == HandlerType.SUBCLASS) {
+            return null;
+        }
+        if (handlerType == HandlerType.DELEGATING || handlerType == HandlerType.INTERCEPTING) {
+            return new Class<?>[]{getHandlerClass(), Object.class};
+        }
+        return new Class<?>[]{getHandlerClass()};
     }
 
     private void generateConstructor() {
+        if (handlerType == HandlerType.SUBCLASS) {
+            for (Constructor<?> constructor : getSuperConstructors(superClass)) {
+                generateSubclassConstructor(constructor);
+            }
+            return;
+        }
         final DexType objectType = dexBuilder.addType(Object.class);
         final DexType voidType = dexBuilder.addType("V");
+        final Class<?>[] parameterTypes = getConstructorParameterTypes();
+        final List<DexType> dexParameterTypes = new ArrayList<>(parameterTypes.length);
+        for (Class<?> parameterType : parameterTypes) {
+            dexParameterTypes.add(dexBuilder.addType(parameterType));
+        }
         final DexMethod ctr = dexBuilder.addMethod(proxyType,
                 dexBuilder.addString("<init>"),
-                dexBuilder.addProto(voidType, Arrays.asList(
-                        dexBuilder.addType(InvocationHandler.class),
-                        dexBuilder.addType(Method[].class))));
+                dexBuilder.addProto(voidType, dexParameterTypes));
         final DexMethod objectCtr = dexBuilder.addMethod(objectType, dexBuilder.addString("<init>"),
                 dexBuilder.addProto(voidType, Collections.<DexType>emptyList()));
-        proxyClassBuilder.directMethod(ctr, AccessFlags.fromValue(AccessFlags.ACC_PUBLIC, AccessFlags.ACC_CONSTRUCTOR), DexCode.newBuilder()
-                .registersSize(3)
-                .insSize(3)
+        final DexCode.Builder builder = DexCode.newBuilder()
+                .registersSize(1 + parameterTypes.length)
+                .insSize(1 + parameterTypes.length)
                 .outsSize(1)
                 .instruction(invokeDirect(0, objectCtr))
-                .instruction(iputObject(1, 0, handlerField))
-                .instruction(iputObject(2, 0, methodsField))
-                .instruction(returnVoid())
-                .build());
+                .instruction(iputObject(1, 0, handlerField));
+        if (delegateField != null) {
+            builder.instruction(iputObject(2, 0, delegateField));
+        }
+        builder.instruction(returnVoid());
+        proxyClassBuilder.directMethod(ctr, AccessFlags.fromValue(AccessFlags.ACC_PUBLIC, AccessFlags.ACC_CONSTRUCTOR), builder.build());
     }
 
-    private void generateMethods() {
-        methods = interfaceClass.getMethods();
+    /**
+     * 接收父类构造函数的参数和 handler，先保存 handler 再调用父类构造函数，使父类构造函数中的调用也能被拦截
+     */
+    private void generateSubclassConstructor(final Constructor<?> superConstructor) {
+        final Class<?>[] superParameterTypes = superConstructor.getParameterTypes();
+        final DexType voidType = dexBuilder.addType("V");
+        final List<DexType> superDexParameterTypes = new ArrayList<>(superParameterTypes.length);
+        for (Class<?> parameterType : superParameterTypes) {
+            superDexParameterTypes.add(dexBuilder.addType(parameterType));
+        }
+        final List<DexType> dexParameterTypes = new ArrayList<>(superDexParameterTypes);
+        dexParameterTypes.add(dexBuilder.addType(InvocationHandler.class));
+        final DexMethod ctr = dexBuilder.addMethod(proxyType,
+                dexBuilder.addString("<init>"),
+                dexBuilder.addProto(voidType, dexParameterTypes));
+        final DexMethod superCtr = dexBuilder.addMethod(dexBuilder.addType(superClass),
+                dexBuilder.addString("<init>"),
+                dexBuilder.addProto(voidType, superDexParameterTypes));
+
+        // this 和父类构造函数的参数是连续的寄存器，handler 在最后
+        final int rHandler = 0;
+        final int rThis = 1;
+        final int superInsSize = calculateArgCount(superParameterTypes);
+        final DexCode.Builder builder = DexCode.newBuilder()
+                .registersSize(rThis + superInsSize + 1)
+                .insSize(superInsSize + 1)
+                .outsSize(superInsSize)
+                .instruction(moveObjectFrom16(rHandler, rThis + superInsSize))
+                .instruction(iputObject(rHandler, rThis, handlerField))
+                .instruction(invokeDirectRange(rThis, superInsSize, superCtr))
+                .instruction(returnVoid());
+        // protected 的父类构造函数也生成 public 的构造函数，以便实例化
+        proxyClassBuilder.directMethod(ctr, AccessFlags.fromValue(AccessFlags.ACC_PUBLIC, AccessFlags.ACC_CONSTRUCTOR), builder.build());
+    }
 
+    private void generateMethods() {
         for (int i = 0; i < methods.length; i++) {
             final Method method = methods[i];
-            generateMethodCode(method, i);
+            if (handlerType == HandlerType.SUBCLASS) {
+                // 未拦截的方法不覆盖，调用时就是普通的虚方法调用
+                if (isIntercepted(i)) {
+                    generateMethodCode(method, i);
+                    if (!Modifier.isAbstract(method.getModifiers())) {
+                        generateSuperMethodCode(method);
+                    }
+                }
+            } else if (!isIntercepted(i)) {
+                generateDelegateMethodCode(method, i);
+            } else if (hooks != null) {
+                generateAdvisedMethodCode(method, i);
+            } else if (handlerType == HandlerType.TYPED && fitsTypedSlots(method)) {
+                generateTypedMethodCode(method, i);
+            } else if (handlerType == HandlerType.FIXED_ARITY
+                    && method.getParameterTypes().length <= FixedArityInvocationHandler.MAX_ARITY) {
+                generateFixedArityMethodCode(method, i);
+            } else {
+                generateMethodCode(method, i);
+            }
         }
     }
 
@@ -161,12 +1508,11 @@ public class ProxyBuilder<T> {
     }
 
     private void generateMethodCode(final Method method, final int methodIndex) {
-        // TODO do it once
-        final DexMethod invokeMethod = dexBuilder.addMethod(dexBuilder.addType(InvocationHandler.class),
+        final DexMethod invokeMethod = dexBuilder.addMethod(dexBuilder.addType(handlerType.handlerClass),
                 dexBuilder.addString("invoke"),
                 dexBuilder.addProto(dexBuilder.addType(Object.class), Arrays.asList(
                         dexBuilder.addType(Object.class),
-                        dexBuilder.addType(Method.class),
+                        handlerType.passesMethod ? dexBuilder.addType(Method.class) : dexBuilder.addType(int.class),
                         dexBuilder.addType(Object[].class)
                 )));
 
@@ -174,12 +1520,11 @@ public class ProxyBuilder<T> {
 
         final int rHandler = 0;
         final int rMethod = 1;
-        final int rMethodArray = 2;
-        final int rIndex = 3;
-        final int rArgArray = 4;
-        final int rArrSize = 5;
-        final int rBoxedArg = 6;
-        final int rThis = 7;
+        final int rIndex = 2;
+        final int rArgArray = 3;
+        // 也用于拷贝 4 bit 寄存器放不下的 long/double 参数，占用两个寄存器
+        final int rBoxedArg = 4;
+        final int rThis = 6;
         final int registersSize = calculateRegisterSize(rThis, method.getParameterTypes());
         final int insSize = calculateArgCount(method.getParameterTypes());
         final DexCode.Builder builder = DexCode.newBuilder()
@@ -187,53 +1532,588 @@ public class ProxyBuilder<T> {
                 .insSize(insSize)
                 .outsSize(4)
                 .instruction(igetObject(rHandler, rThis, handlerField))
-                .instruction(igetObject(rMethodArray, rThis, methodsField))
-                .instruction(const16(rIndex, methodIndex))
-                .instruction(agetObject(rMethod, rMethodArray, rIndex))
-                .instruction(const4(rArrSize, method.getParameterTypes().length))
-                .instruction(newArray(rArgArray, rArrSize, dexBuilder.addType(Object[].class)));
+                .instruction(handlerType.passesMethod
+                        ? sgetObject(rMethod, methodFields[methodIndex])
+                        : const16(rMethod, methodIndex));
+        if (method.getParameterTypes().length == 0) {
+            builder.instruction(sgetObject(rArgArray, getEmptyArgsField()));
+        } else {
+            builder.instruction(const16(rIndex, method.getParameterTypes().length))
+                    .instruction(newArray(rArgArray, rIndex, dexBuilder.addType(Object[].class)));
+        }
 
         int rArg = rThis + 1;
         for (int i = 0; i < method.getParameterTypes().length; i++, rArg++) {
             final Class<?> argType = method.getParameterTypes()[i];
-            builder.instruction(const4(rIndex, i));
+            builder.instruction(const16(rIndex, i));
             if (argType.isPrimitive()) {
                 if (isWide(argType)) {
                     // long/double 占用两个寄存器
                     // http://aospxref.com/android-10.0.0_r47/xref/art/runtime/verifier/method_verifier.cc
-                    builder.instruction(invokeStatic(rArg, ++rArg, getValueOfMethod(argType)))
-                            .instruction(moveResultObject(rBoxedArg))
-                            .instruction(aputObject(rBoxedArg, rArgArray, rIndex));
+                    int rValue = rArg++;
+                    if (rArg > 0x0F) {
+                        builder.instruction(moveWideFrom16(rBoxedArg, rValue));
+                        rValue = rBoxedArg;
+                    }
+                    builder.instruction(invokeStatic(rValue, rValue + 1, getValueOfMethod(argType)));
                 } else {
-                    builder.instruction(invokeStatic(rArg, getValueOfMethod(argType)))
-                            .instruction(moveResultObject(rBoxedArg))
-                            .instruction(aputObject(rBoxedArg, rArgArray, rIndex));
+                    int rValue = rArg;
+                    if (rValue > 0x0F) {
+                        builder.instruction(moveFrom16(rBoxedArg, rValue));
+                        rValue = rBoxedArg;
+                    }
+                    builder.instruction(invokeStatic(rValue, getValueOfMethod(argType)));
                 }
+                builder.instruction(moveResultObject(rBoxedArg))
+                        .instruction(aputObject(rBoxedArg, rArgArray, rIndex));
             } else {
                 builder.instruction(aputObject(rArg, rArgArray, rIndex));
             }
         }
 
-        if (method.getReturnType() == void.class) {
-            builder.instruction(invokeInterface(rHandler, rThis, rMethod, rArgArray, invokeMethod))
-                    .instruction(returnVoid());
-        } else if (method.getReturnType().isPrimitive()) {
-            builder.instruction(invokeInterface(rHandler, rThis, rMethod, rArgArray, invokeMethod))
-                    .instruction(moveResultObject(rHandler))
-                    .instruction(checkCast(rHandler, dexBuilder.addType(getBoxedType(method.getReturnType()))))
-                    .instruction(invokeVirtual(rHandler, convertValueOfMethod(method.getReturnType())))
-                    .instruction(moveResult(rHandler))
-                    .instruction(returnPrimitive(rHandler));
+        if (metricsFields == null) {
+            builder.instruction(invokeInterface(rHandler, rThis, rMethod, rArgArray, invokeMethod));
+            returnBoxedResult(builder, method.getReturnType(), rHandler);
+        } else {
+            // 参数装箱后 rIndex 和 rBoxedArg 不再使用，分别存放 MethodMetrics 和开始时间
+            builder.instruction(sgetObject(rIndex, generateMetricsField(methodIndex)))
+                    .instruction(invokeVirtual(rIndex, getMetricsMethod("enter")))
+                    .instruction(moveResultWide(rBoxedArg));
+            final int tryStart = builder.size();
+            builder.instruction(invokeInterface(rHandler, rThis, rMethod, rArgArray, invokeMethod));
+            final int tryEnd = builder.size();
+            if (method.getReturnType() != void.class) {
+                builder.instruction(moveResultObject(rHandler));
+            }
+            builder.instruction(invokeVirtual(rIndex, rBoxedArg, rBoxedArg + 1, getMetricsMethod("exit")));
+            returnBoxedValue(builder, method.getReturnType(), rHandler);
+
+            // handler 抛出的异常记录后原样抛出，rMethod 已不再使用
+            builder.catchAll(tryStart, tryEnd, builder.size())
+                    .instruction(moveException(rMethod))
+                    .instruction(invokeVirtual(rIndex, rBoxedArg, rBoxedArg + 1, getMetricsMethod("exitExceptionally")))
+                    .instruction(throwException(rMethod));
+        }
+
+        proxyClassBuilder.virtualMethod(dexMethod, AccessFlags.fromValue(AccessFlags.ACC_PUBLIC), builder.build());
+    }
+
+    /**
+     * Fetches the {@link MethodMetrics} of the method into {@code rMetrics} and the start time
+     * returned by {@link MethodMetrics#enter()} into the register pair after it, which
+     * {@link #endMetrics} and {@link #catchMetrics} pass on with invoke-virtual/range.
+     *
+     * @return the index of the next instruction, where the try block around the call starts
+     */
+    private int beginMetrics(final DexCode.Builder builder, final int methodIndex, final int rMetrics) {
+        builder.instruction(sgetObject(rMetrics, generateMetricsField(methodIndex)))
+                .instruction(invokeVirtualRange(rMetrics, 1, getMetricsMethod("enter")))
+                .instruction(moveResultWide(rMetrics + 1));
+        return builder.size();
+    }
+
+    private void endMetrics(final DexCode.Builder builder, final int rMetrics) {
+        builder.instruction(invokeVirtualRange(rMetrics, 3, getMetricsMethod("exit")));
+    }
+
+    /**
+     * 调用抛出的异常记录后原样抛出
+     *
+     * @param rException a register no longer used by then
+     */
+    private void catchMetrics(final DexCode.Builder builder, final int tryStart, final int tryEnd,
+                              final int rMetrics, final int rException) {
+        builder.catchAll(tryStart, tryEnd, builder.size())
+                .instruction(moveException(rException))
+                .instruction(invokeVirtualRange(rMetrics, 3, getMetricsMethod("exitExceptionally")))
+                .instruction(throwException(rException));
+    }
+
+    /**
+     * @param name {@code enter}, which returns the start time, or {@code exit} or
+     *             {@code exitExceptionally}, which take it
+     */
+    private DexMethod getMetricsMethod(final String name) {
+        final DexType longType = dexBuilder.addType(long.class);
+        final DexProto proto = name.equals("enter")
+                ? dexBuilder.addProto(longType, Collections.<DexType>emptyList())
+                : dexBuilder.addProto(dexBuilder.addType("V"), Collections.singletonList(longType));
+        return dexBuilder.addMethod(dexBuilder.addType(MethodMetrics.class), dexBuilder.addString(name), proto);
+    }
+
+    private DexField generateMetricsField(final int methodIndex) {
+        metricsFields[methodIndex] = dexBuilder.addField(proxyType,
+                dexBuilder.addString("metrics" + methodIndex),
+                dexBuilder.addType(MethodMetrics.class));
+        proxyClassBuilder.staticField(metricsFields[methodIndex],
+                AccessFlags.fromValue(AccessFlags.ACC_PRIVATE, AccessFlags.ACC_STATIC));
+        return metricsFields[methodIndex];
+    }
+
+    /**
+     * 不拦截的方法直接以原参数调用 delegate，不经过 handler 和反射
+     */
+    private void generateDelegateMethodCode(final Method method, final int methodIndex) {
+        final DexMethod dexMethod = dexBuilder.addMethod(proxyType, dexBuilder.addString(method.getName()), getDexProto(method));
+        final DexMethod targetMethod = dexBuilder.addMethod(dexBuilder.addType(getMethodOwner(method)),
+                dexBuilder.addString(method.getName()), getDexProto(method));
+
+        // this 所在寄存器替换为 delegate 后，与后面的参数正好构成 invoke-interface/range 需要的连续寄存器
+        final int rResult = 0;
+        final int rMetrics = 2;
+        final int rThis = metricsFields == null ? rMetrics : rMetrics + 3;
+        final int insSize = calculateArgCount(method.getParameterTypes());
+        final DexCode.Builder builder = DexCode.newBuilder()
+                .registersSize(rThis + insSize)
+                .insSize(insSize)
+                .outsSize(metricsFields == null ? insSize : Math.max(insSize, 3))
+                .instruction(igetObject(rThis, rThis, delegateField));
+        if (metricsFields == null) {
+            builder.instruction(invokeInterfaceRange(rThis, insSize, targetMethod));
+            returnResult(builder, method.getReturnType(), rResult);
+        } else {
+            final int tryStart = beginMetrics(builder, methodIndex, rMetrics);
+            builder.instruction(invokeInterfaceRange(rThis, insSize, targetMethod));
+            final int tryEnd = builder.size();
+            returnResult(builder, method.getReturnType(), rResult, rMetrics);
+            catchMetrics(builder, tryStart, tryEnd, rMetrics, rResult);
+        }
+
+        proxyClassBuilder.virtualMethod(dexMethod, AccessFlags.fromValue(AccessFlags.ACC_PUBLIC), builder.build());
+    }
+
+    /**
+     * 生成 super$name 方法，以 invoke-super 调用被覆盖的父类实现，供 {@link #invokeSuper} 使用
+     */
+    private void generateSuperMethodCode(final Method method) {
+        final DexMethod dexMethod = dexBuilder.addMethod(proxyType,
+                dexBuilder.addString(SUPER_METHOD_PREFIX + method.getName()), getDexProto(method));
+        final DexMethod superMethod = dexBuilder.addMethod(dexBuilder.addType(superClass),
+                dexBuilder.addString(method.getName()), getDexProto(method));
+
+        final int rResult = 0;
+        final int rThis = 2;
+        final int insSize = calculateArgCount(method.getParameterTypes());
+        final DexCode.Builder builder = DexCode.newBuilder()
+                .registersSize(rThis + insSize)
+                .insSize(insSize)
+                .outsSize(insSize)
+                .instruction(invokeSuperRange(rThis, insSize, superMethod));
+        returnResult(builder, method.getReturnType(), rResult);
+
+        proxyClassBuilder.virtualMethod(dexMethod, AccessFlags.fromValue(AccessFlags.ACC_PUBLIC), builder.build());
+    }
+
+    /**
+     * 依次调用 before hook、delegate 和 after hook，参数和返回值始终保持原来的类型
+     */
+    private void generateAdvisedMethodCode(final Method method, final int methodIndex) {
+        final Class<?>[] parameterTypes = method.getParameterTypes();
+        final Class<?> returnType = method.getReturnType();
+        final DexMethod dexMethod = dexBuilder.addMethod(proxyType, dexBuilder.addString(method.getName()), getDexProto(method));
+        final DexMethod targetMethod = dexBuilder.addMethod(dexBuilder.addType(getMethodOwner(method)),
+                dexBuilder.addString(method.getName()), getDexProto(method));
+        final DexType interceptorType = dexBuilder.addType(hooks.interceptorClass);
+
+        // receiver、参数的拷贝、返回值依次放在连续的寄存器中，供各个 /range 调用使用
+        final int rReceiver = 0;
+        final int argSize = calculateArgCount(parameterTypes) - 1;
+        final int rResult = rReceiver + 1 + argSize;
+        final int resultSize = returnType == void.class ? 0 : isWide(returnType) ? 2 : 1;
+        final int rMetrics = rResult + resultSize;
+        final int rThis = metricsFields == null ? rMetrics : rMetrics + 3;
+        final DexCode.Builder builder = DexCode.newBuilder()
+                .registersSize(rThis + 1 + argSize)
+                .insSize(1 + argSize)
+                .outsSize(metricsFields == null ? 1 + argSize + resultSize : Math.max(1 + argSize + resultSize, 3));
+
+        final int[] argRegisters = new int[parameterTypes.length];
+        int rArg = rThis + 1;
+        int rCopy = rReceiver + 1;
+        for (int i = 0; i < parameterTypes.length; i++) {
+            argRegisters[i] = rCopy;
+            builder.instruction(moveOf(parameterTypes[i], rCopy, rArg));
+            final int size = isWide(parameterTypes[i]) ? 2 : 1;
+            rCopy += size;
+            rArg += size;
+        }
+
+        // hook 和 delegate 一起计时
+        final int tryStart = metricsFields == null ? 0 : beginMetrics(builder, methodIndex, rMetrics);
+        for (InterceptorHooks.Hook hook : hooks.before(methodIndex)) {
+            builder.instruction(moveObjectFrom16(rReceiver, rThis))
+                    .instruction(igetObject(rReceiver, rReceiver, handlerField))
+                    .instruction(invokeVirtualRange(rReceiver, 1 + argSize, getHookMethod(interceptorType, hook)));
+            if (hook.argument >= 0) {
+                builder.instruction(moveResultOf(parameterTypes[hook.argument], argRegisters[hook.argument]));
+            }
+        }
+
+        builder.instruction(moveObjectFrom16(rReceiver, rThis))
+                .instruction(igetObject(rReceiver, rReceiver, delegateField))
+                .instruction(invokeInterfaceRange(rReceiver, 1 + argSize, targetMethod));
+        if (resultSize > 0) {
+            builder.instruction(moveResultOf(returnType, rResult));
+        }
+
+        for (InterceptorHooks.Hook hook : hooks.after(methodIndex)) {
+            builder.instruction(moveObjectFrom16(rReceiver, rThis))
+                    .instruction(igetObject(rReceiver, rReceiver, handlerField))
+                    .instruction(invokeVirtualRange(rReceiver, 1 + argSize + resultSize, getHookMethod(interceptorType, hook)));
+            if (resultSize > 0) {
+                builder.instruction(moveResultOf(returnType, rResult));
+            }
+        }
+
+        final int tryEnd = builder.size();
+        if (metricsFields != null) {
+            endMetrics(builder, rMetrics);
+        }
+        if (resultSize > 0) {
+            builder.instruction(returnOf(returnType, rResult));
+        } else {
+            builder.instruction(returnVoid());
+        }
+        if (metricsFields != null) {
+            catchMetrics(builder, tryStart, tryEnd, rMetrics, rReceiver);
+        }
+
+        proxyClassBuilder.virtualMethod(dexMethod, AccessFlags.fromValue(AccessFlags.ACC_PUBLIC), builder.build());
+    }
+
+    private DexMethod getHookMethod(final DexType interceptorType, final InterceptorHooks.Hook hook) {
+        return dexBuilder.addMethod(interceptorType, dexBuilder.addString(hook.method.getName()), getDexProto(hook.method));
+    }
+
+    /**
+     * Returns the result of the preceding invoke, which already has the return type.
+     *
+     * @param rResult a register pair free to use
+     */
+    private void returnResult(final DexCode.Builder builder, final Class<?> returnType, final int rResult) {
+        if (returnType == void.class) {
+            builder.instruction(returnVoid());
+        } else {
+            builder.instruction(moveResultOf(returnType, rResult))
+                    .instruction(returnOf(returnType, rResult));
+        }
+    }
+
+    /**
+     * Like {@link #returnResult(DexCode.Builder, Class, int)}, ending the metrics of the call
+     * before returning.
+     */
+    private void returnResult(final DexCode.Builder builder, final Class<?> returnType, final int rResult,
+                              final int rMetrics) {
+        if (returnType == void.class) {
+            endMetrics(builder, rMetrics);
+            builder.instruction(returnVoid());
+        } else {
+            builder.instruction(moveResultOf(returnType, rResult));
+            endMetrics(builder, rMetrics);
+            builder.instruction(returnOf(returnType, rResult));
+        }
+    }
+
+    private DexInstruction moveOf(final Class<?> type, final int to, final int from) {
+        if (!type.isPrimitive()) {
+            return moveObjectFrom16(to, from);
+        }
+        return isWide(type) ? moveWideFrom16(to, from) : moveFrom16(to, from);
+    }
+
+    private DexInstruction moveResultOf(final Class<?> type, final int to) {
+        if (!type.isPrimitive()) {
+            return moveResultObject(to);
+        }
+        return isWide(type) ? moveResultWide(to) : moveResult(to);
+    }
+
+    private DexInstruction returnOf(final Class<?> type, final int register) {
+        if (!type.isPrimitive()) {
+            return returnObject(register);
+        }
+        return isWide(type) ? returnWide(register) : returnPrimitive(register);
+    }
+
+    /**
+     * 参数不超过 {@link FixedArityInvocationHandler#MAX_ARITY} 个时直接作为 invokeN 的参数传递，不创建数组
+     */
+    private void generateFixedArityMethodCode(final Method method, final int methodIndex) {
+        final Class<?>[] parameterTypes = method.getParameterTypes();
+        final List<DexType> invokeArgTypes = new ArrayList<>();
+        invokeArgTypes.add(dexBuilder.addType(Object.class));
+        invokeArgTypes.add(dexBuilder.addType(Method.class));
+        for (int i = 0; i < parameterTypes.length; i++) {
+            invokeArgTypes.add(dexBuilder.addType(Object.class));
+        }
+        final DexMethod invokeMethod = dexBuilder.addMethod(dexBuilder.addType(FixedArityInvocationHandler.class),
+                dexBuilder.addString("invoke" + parameterTypes.length),
+                dexBuilder.addProto(dexBuilder.addType(Object.class), invokeArgTypes));
+        final DexMethod dexMethod = dexBuilder.addMethod(proxyType, dexBuilder.addString(method.getName()), getDexProto(method));
+
+        // handler, proxy, method, a0..a3 必须是连续的寄存器
+        final int rHandler = 0;
+        final int rProxy = 1;
+        final int rMethod = 2;
+        final int rFirstArg = 3;
+        final int frameSize = rFirstArg + parameterTypes.length;
+        final int rTemp = rFirstArg + FixedArityInvocationHandler.MAX_ARITY;
+        final int rMetrics = rTemp + 2;
+        final int rThis = metricsFields == null ? rMetrics : rMetrics + 3;
+        final int insSize = calculateArgCount(parameterTypes);
+        final DexCode.Builder builder = DexCode.newBuilder()
+                .registersSize(rThis + insSize)
+                .insSize(insSize)
+                .outsSize(frameSize)
+                .instruction(moveObjectFrom16(rProxy, rThis))
+                .instruction(igetObject(rHandler, rProxy, handlerField))
+                .instruction(sgetObject(rMethod, methodFields[methodIndex]));
+
+        int rArg = rThis + 1;
+        for (int i = 0; i < parameterTypes.length; i++) {
+            final Class<?> argType = parameterTypes[i];
+            final int rSlot = rFirstArg + i;
+            if (!argType.isPrimitive()) {
+                builder.instruction(moveObjectFrom16(rSlot, rArg++));
+            } else if (isWide(argType)) {
+                builder.instruction(moveWideFrom16(rTemp, rArg))
+                        .instruction(invokeStatic(rTemp, rTemp + 1, getValueOfMethod(argType)))
+                        .instruction(moveResultObject(rSlot));
+                rArg += 2;
+            } else {
+                builder.instruction(moveFrom16(rTemp, rArg++))
+                        .instruction(invokeStatic(rTemp, getValueOfMethod(argType)))
+                        .instruction(moveResultObject(rSlot));
+            }
+        }
+
+        if (metricsFields == null) {
+            builder.instruction(invokeInterfaceRange(rHandler, frameSize, invokeMethod));
+            returnBoxedResult(builder, method.getReturnType(), rHandler);
+        } else {
+            final int tryStart = beginMetrics(builder, methodIndex, rMetrics);
+            builder.instruction(invokeInterfaceRange(rHandler, frameSize, invokeMethod));
+            final int tryEnd = builder.size();
+            if (method.getReturnType() != void.class) {
+                builder.instruction(moveResultObject(rHandler));
+            }
+            endMetrics(builder, rMetrics);
+            returnBoxedValue(builder, method.getReturnType(), rHandler);
+            catchMetrics(builder, tryStart, tryEnd, rMetrics, rProxy);
+        }
+
+        proxyClassBuilder.virtualMethod(dexMethod, AccessFlags.fromValue(AccessFlags.ACC_PUBLIC), builder.build());
+    }
+
+    /**
+     * Returns the Object result of the preceding invoke, unboxed for primitive return types.
+     *
+     * @param rResult a register pair free to use
+     */
+    private void returnBoxedResult(final DexCode.Builder builder, final Class<?> returnType, final int rResult) {
+        if (returnType != void.class) {
+            builder.instruction(moveResultObject(rResult));
+        }
+        returnBoxedValue(builder, returnType, rResult);
+    }
+
+    /**
+     * 拆箱并返回已经存放在寄存器中的 handler 返回值
+     */
+    private void returnBoxedValue(final DexCode.Builder builder, final Class<?> returnType, final int rResult) {
+        if (returnType == void.class) {
+            builder.instruction(returnVoid());
+        } else if (returnType.isPrimitive()) {
+            builder.instruction(checkCast(rResult, dexBuilder.addType(getBoxedType(returnType))))
+                    .instruction(invokeVirtual(rResult, convertValueOfMethod(returnType)));
+            if (isWide(returnType)) {
+                builder.instruction(moveResultWide(rResult))
+                        .instruction(returnWide(rResult));
+            } else {
+                builder.instruction(moveResult(rResult))
+                        .instruction(returnPrimitive(rResult));
+            }
+        } else {
+            builder.instruction(checkCast(rResult, dexBuilder.addType(returnType)))
+                    .instruction(returnObject(rResult));
+        }
+    }
+
+    private DexField getEmptyArgsField() {
+        return dexBuilder.addField(dexBuilder.addType(ProxyBuilder.class),
+                dexBuilder.addString("EMPTY_ARGS"),
+                dexBuilder.addType(Object[].class));
+    }
+
+    private boolean fitsTypedSlots(final Method method) {
+        int primitives = 0;
+        int references = 0;
+        for (Class<?> parameterType : method.getParameterTypes()) {
+            if (parameterType.isPrimitive()) {
+                primitives++;
+            } else {
+                references++;
+            }
+        }
+        return primitives <= TypedInvocationHandler.PRIMITIVE_SLOTS
+                && references <= TypedInvocationHandler.REFERENCE_SLOTS;
+    }
+
+    /**
+     * 参数放入固定的 long/Object 槽位，通过 invoke-interface/range 调用按返回类型特化的入口，全程无装箱
+     */
+    private void generateTypedMethodCode(final Method method, final int methodIndex) {
+        final Class<?> returnType = method.getReturnType();
+        final DexMethod invokeMethod = getTypedInvokeMethod(returnType);
+        final DexMethod dexMethod = dexBuilder.addMethod(proxyType, dexBuilder.addString(method.getName()), getDexProto(method));
+
+        // handler, proxy, methodId, p0..p3, o0..o3 必须是连续的寄存器
+        final int rHandler = 0;
+        final int rProxy = 1;
+        final int rMethodId = 2;
+        final int rFirstPrimitive = 3;
+        final int rFirstReference = rFirstPrimitive + 2 * TypedInvocationHandler.PRIMITIVE_SLOTS;
+        final int frameSize = rFirstReference + TypedInvocationHandler.REFERENCE_SLOTS;
+        final int rMetrics = frameSize;
+        final int rThis = metricsFields == null ? rMetrics : rMetrics + 3;
+        final int insSize = calculateArgCount(method.getParameterTypes());
+        final DexCode.Builder builder = DexCode.newBuilder()
+                .registersSize(rThis + insSize)
+                .insSize(insSize)
+                .outsSize(frameSize)
+                .instruction(moveObjectFrom16(rProxy, rThis))
+                .instruction(igetObject(rHandler, rProxy, handlerField))
+                .instruction(const16(rMethodId, methodIndex));
+
+        int primitives = 0;
+        int references = 0;
+        int rArg = rThis + 1;
+        for (Class<?> argType : method.getParameterTypes()) {
+            if (!argType.isPrimitive()) {
+                builder.instruction(moveObjectFrom16(rFirstReference + references++, rArg++));
+                continue;
+            }
+            final int rSlot = rFirstPrimitive + 2 * primitives++;
+            if (argType == long.class) {
+                builder.instruction(moveWideFrom16(rSlot, rArg));
+                rArg += 2;
+            } else if (argType == double.class) {
+                builder.instruction(moveWideFrom16(rSlot, rArg))
+                        .instruction(invokeStatic(rSlot, rSlot + 1, getRawBitsMethod(argType)))
+                        .instruction(moveResultWide(rSlot));
+                rArg += 2;
+            } else if (argType == float.class) {
+                builder.instruction(moveFrom16(rSlot, rArg++))
+                        .instruction(invokeStatic(rSlot, getRawBitsMethod(argType)))
+                        .instruction(moveResult(rSlot))
+                        .instruction(intToLong(rSlot, rSlot));
+            } else {
+                builder.instruction(moveFrom16(rSlot, rArg++))
+                        .instruction(intToLong(rSlot, rSlot));
+            }
+        }
+        for (; primitives < TypedInvocationHandler.PRIMITIVE_SLOTS; primitives++) {
+            builder.instruction(constWide16(rFirstPrimitive + 2 * primitives, 0));
+        }
+        for (; references < TypedInvocationHandler.REFERENCE_SLOTS; references++) {
+            builder.instruction(const4(rFirstReference + references, 0));
+        }
+
+        final int tryStart = metricsFields == null ? 0 : beginMetrics(builder, methodIndex, rMetrics);
+        builder.instruction(invokeInterfaceRange(rHandler, frameSize, invokeMethod));
+        final int tryEnd = builder.size();
+        if (returnType == long.class || returnType == double.class) {
+            builder.instruction(moveResultWide(rHandler));
+        } else if (returnType.isPrimitive() && returnType != void.class) {
+            builder.instruction(moveResult(rHandler));
+        } else if (returnType != void.class) {
+            builder.instruction(moveResultObject(rHandler));
+        }
+        if (metricsFields != null) {
+            endMetrics(builder, rMetrics);
+        }
+        if (returnType == void.class) {
+            builder.instruction(returnVoid());
+        } else if (returnType == long.class || returnType == double.class) {
+            builder.instruction(returnWide(rHandler));
+        } else if (returnType.isPrimitive()) {
+            if (returnType == byte.class) {
+                builder.instruction(intToByte(rHandler, rHandler));
+            } else if (returnType == char.class) {
+                builder.instruction(intToChar(rHandler, rHandler));
+            } else if (returnType == short.class) {
+                builder.instruction(intToShort(rHandler, rHandler));
+            }
+            builder.instruction(returnPrimitive(rHandler));
         } else {
-            builder.instruction(invokeInterface(rHandler, rThis, rMethod, rArgArray, invokeMethod))
-                    .instruction(moveResultObject(rHandler))
-                    .instruction(checkCast(rHandler, dexBuilder.addType(method.getReturnType())))
+            builder.instruction(checkCast(rHandler, dexBuilder.addType(returnType)))
                     .instruction(returnObject(rHandler));
         }
+        if (metricsFields != null) {
+            catchMetrics(builder, tryStart, tryEnd, rMetrics, rProxy);
+        }
 
         proxyClassBuilder.virtualMethod(dexMethod, AccessFlags.fromValue(AccessFlags.ACC_PUBLIC), builder.build());
     }
 
+    private DexMethod getTypedInvokeMethod(final Class<?> returnType) {
+        final String methodName;
+        final Class<?> handlerReturnType;
+        if (returnType == void.class) {
+            methodName = "invokeVoid";
+            handlerReturnType = void.class;
+        } else if (returnType == boolean.class) {
+            methodName = "invokeBoolean";
+            handlerReturnType = boolean.class;
+        } else if (returnType == int.class || returnType == byte.class
+                || returnType == char.class || returnType == short.class) {
+            methodName = "invokeInt";
+            handlerReturnType = int.class;
+        } else if (returnType == long.class) {
+            methodName = "invokeLong";
+            handlerReturnType = long.class;
+        } else if (returnType == float.class) {
+            methodName = "invokeFloat";
+            handlerReturnType = float.class;
+        } else if (returnType == double.class) {
+            methodName = "invokeDouble";
+            handlerReturnType = double.class;
+        } else {
+            methodName = "invokeObject";
+            handlerReturnType = Object.class;
+        }
+
+        final List<DexType> argTypes = new ArrayList<>();
+        argTypes.add(dexBuilder.addType(Object.class));
+        argTypes.add(dexBuilder.addType(int.class));
+        for (int i = 0; i < TypedInvocationHandler.PRIMITIVE_SLOTS; i++) {
+            argTypes.add(dexBuilder.addType(long.class));
+        }
+        for (int i = 0; i < TypedInvocationHandler.REFERENCE_SLOTS; i++) {
+            argTypes.add(dexBuilder.addType(Object.class));
+        }
+        return dexBuilder.addMethod(dexBuilder.addType(TypedInvocationHandler.class),
+                dexBuilder.addString(methodName),
+                dexBuilder.addProto(dexBuilder.addType(handlerReturnType), argTypes));
+    }
+
+    /**
+     * Float.floatToRawIntBits / Double.doubleToRawLongBits
+     */
+    private DexMethod getRawBitsMethod(final Class<?> argType) {
+        if (float.class == argType) {
+            return dexBuilder.addMethod(dexBuilder.addType(Float.class),
+                    dexBuilder.addString("floatToRawIntBits"),
+                    dexBuilder.addProto(dexBuilder.addType(int.class),
+                            Collections.singletonList(dexBuilder.addType(float.class))));
+        }
+        return dexBuilder.addMethod(dexBuilder.addType(Double.class),
+                dexBuilder.addString("doubleToRawLongBits"),
+                dexBuilder.addProto(dexBuilder.addType(long.class),
+                        Collections.singletonList(dexBuilder.addType(double.class))));
+    }
+
     private Class<?> getBoxedType(final Class<?> primitiveType) {
         if (int.class == primitiveType) {
             return Integer.class;
@@ -293,7 +2173,7 @@ public class ProxyBuilder<T> {
         } else if (byte.class == argType) {
             boxedClass = dexBuilder.addType(Byte.class);
             primitiveClass = dexBuilder.addType(byte.class);
-            methodName = "byteValueValue";
+            methodName = "byteValue";
         } else if (char.class == argType) {
             boxedClass = dexBuilder.addType(Character.class);
             primitiveClass = dexBuilder.addType(char.class);
@@ -353,51 +2233,100 @@ public class ProxyBuilder<T> {
         return dexBuilder.addProto(returnDexType, dexArgTypes);
     }
 
-    private void writeDex(final Context context) {
-        try {
-            DexWriter.write(dexBuilder.build(), getProxyDexFile(context));
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
-    }
-
-    private T createProxyInstance(final Context context) {
-        final DexClassLoader classLoader = new DexClassLoader(getProxyDexFile(context).getAbsolutePath(),
+    private static ClassLoader newDexClassLoader(final Context context, final File dexFile, final ClassLoader parent) {
+        return new DexClassLoader(dexFile.getAbsolutePath(),
                 getCodeCacheDir(context).getAbsolutePath(),
                 null,
-                ProxyBuilder.class.getClassLoader());
+                parent);
+    }
+
+    private ProxyClass loadProxyClass(final ClassLoader classLoader) {
         try {
-            Class<?> proxyClass = classLoader.loadClass(getProxyClassName());
-            Object proxy = proxyClass.getConstructor(InvocationHandler.class, Method[].class)
-                    .newInstance(invocationHandler, methods);
-            return interfaceClass.cast(proxy);
-        } catch (ClassNotFoundException
-                | NoSuchMethodException
-                | IllegalAccessException
-                | InstantiationException
-                | InvocationTargetException e) {
+            ProxyFactory<?> factory = null;
+            if (handlerType == HandlerType.REFLECTIVE) {
+                factory = (ProxyFactory<?>) classLoader.loadClass(getProxyClassName() + FACTORY_CLASS_SUFFIX)
+                        .getField(FACTORY_INSTANCE_FIELD).get(null);
+            }
+            return ProxyClass.of(classLoader.loadClass(getProxyClassName()), factory, getConstructorParameterTypes());
+        } catch (ClassNotFoundException | NoSuchFieldException | IllegalAccessException e) {
             throw new RuntimeException(e);
         }
     }
 
+    private static ClassLoader getParentClassLoader() {
+        return ProxyBuilder.class.getClassLoader();
+    }
+
+    /**
+     * The proxy class lives in the package of the first interface, or of the superclass of a
+     * subclass proxy, and is named after it and a digest of the binary names of all of them, the
+     * intercepted methods and the interceptor, which tells apart nested classes of the same simple
+     * name and every selection.
+     */
     private String getProxyClassName() {
-        final String packageName = interfaceClass.getPackage() == null
-                ? ""
-                : interfaceClass.getPackage().getName() + ".";
-        return packageName + PROXY_CLASS_NAME_PREFIX + interfaceClass.getSimpleName();
+        if (proxyClassName != null) {
+            return proxyClassName;
+        }
+        final StringBuilder identity = new StringBuilder(superClass.getName());
+        for (Class<?> interfaceClass : interfaceClasses) {
+            identity.append(',').append(interfaceClass.getName());
+        }
+        if (intercepted != null) {
+            identity.append('|');
+            appendHex(identity, intercepted);
+        }
+        if (hooks != null) {
+            identity.append('|').append(hooks.interceptorClass.getName());
+        }
+        final Class<?> namingClass = handlerType == HandlerType.SUBCLASS ? superClass : interfaceClasses[0];
+        proxyClassName = getProxyClassName(handlerType, namingClass, identity, metrics);
+        return proxyClassName;
+    }
+
+    /**
+     * vproxy-compiler names the proxy class of an interface it generates at build time the same
+     * way, with the identity {@code "java.lang.Object," + binaryName}.
+     */
+    private static String getProxyClassName(final HandlerType handlerType,
+                                            final Class<?> namingClass,
+                                            final CharSequence identity,
+                                            final boolean metrics) {
+        final String namingClassName = namingClass.getName();
+        final StringBuilder name = new StringBuilder()
+                .append(namingClassName, 0, namingClassName.lastIndexOf('.') + 1)
+                .append(handlerType.classNamePrefix).append(namingClass.getSimpleName())
+                .append('_').append(ProxyDexCache.digest(identity));
+        if (metrics) {
+            name.append(METRICS_CLASS_SUFFIX);
+        }
+        return name.toString();
+    }
+
+    /**
+     * Appends the whole set as one hex number, so that every selection gets its own class name.
+     */
+    private static void appendHex(final StringBuilder sb, final BitSet bits) {
+        final long[] words = bits.toLongArray();
+        if (words.length == 0) {
+            sb.append('0');
+            return;
+        }
+        sb.append(Long.toHexString(words[words.length - 1]));
+        for (int i = words.length - 2; i >= 0; i--) {
+            final String word = Long.toHexString(words[i]);
+            for (int j = word.length(); j < 16; j++) {
+                sb.append('0');
+            }
+            sb.append(word);
+        }
     }
 
     private String getProxyTypeDescription() {
-        final String packageName = interfaceClass.getPackage() == null
-                ? ""
-                : interfaceClass.getPackage().getName().replace('.', '/') + "/";
-        final String proxyName = PROXY_CLASS_NAME_PREFIX + interfaceClass.getSimpleName() + ";";
-        return "L" + packageName + proxyName;
+        return "L" + getProxyClassName().replace('.', '/') + ";";
     }
 
-    private File getProxyDexFile(final Context context) {
-        File proxyDir = new File(getCodeCacheDir(context), "proxies");
-        return new File(proxyDir, interfaceClass.getName() + ".generated.dex");
+    private String getFactoryTypeDescription() {
+        return "L" + (getProxyClassName() + FACTORY_CLASS_SUFFIX).replace('.', '/') + ";";
     }
 
     private static File getCodeCacheDir(final Context context) {
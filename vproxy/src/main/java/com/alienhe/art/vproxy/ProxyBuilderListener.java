@@ -0,0 +1,32 @@
+package com.alienhe.art.vproxy;
+
+/**
+ * Receives what {@link ProxyBuilder} spends its time on, see {@link ProxyBuilder#setListener}.
+ * Override the callbacks of interest; they are called on the thread doing the work and should
+ * return quickly.
+ *
+ * @author alienhe
+ */
+public abstract class ProxyBuilderListener {
+
+    /**
+     * Called after a dex file of proxy classes was generated, or found in the dex cache, and
+     * loaded, i.e. for every miss of the in-memory cache.
+     */
+    public void onProxyClassesLoaded(final ProxyBuildStats stats) {
+    }
+
+    /**
+     * Called when a requested proxy class was already loaded.
+     */
+    public void onCacheHit(final Class<?> proxyClass) {
+    }
+
+    /**
+     * Called after {@link ProxyBuilder} created a proxy instance.
+     *
+     * @param nanos the time the constructor of the proxy took
+     */
+    public void onInstanceCreated(final Class<?> proxyClass, final long nanos) {
+    }
+}
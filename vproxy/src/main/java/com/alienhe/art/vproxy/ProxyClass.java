@@ -0,0 +1,128 @@
+package com.alienhe.art.vproxy;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A loaded proxy class together with everything needed to instantiate it.
+ *
+ * @author alienhe
+ */
+final class ProxyClass {
+
+    final Class<?> type;
+
+    /**
+     * The generated factory of proxy classes taking an {@link java.lang.reflect.InvocationHandler}
+     * only, otherwise null.
+     */
+    final ProxyFactory<?> factory;
+
+    /**
+     * The only constructor, or null when it has one per super constructor.
+     */
+    final Constructor<?> constructor;
+
+    /**
+     * 子类代理的构造方法，按父类构造方法的参数类型缓存
+     */
+    private final ConcurrentMap<List<Class<?>>, Constructor<?>> subclassConstructors = new ConcurrentHashMap<>();
+
+    private ProxyClass(final Class<?> type, final ProxyFactory<?> factory, final Constructor<?> constructor) {
+        this.type = type;
+        this.factory = factory;
+        this.constructor = constructor;
+    }
+
+    /**
+     * @param type           the generated proxy class
+     * @param factory        its generated factory, or null
+     * @param parameterTypes the parameters of its constructor, starting with the handler, or null
+     *                       when it has several constructors
+     */
+    static ProxyClass of(final Class<?> type, final ProxyFactory<?> factory, final Class<?>... parameterTypes) {
+        if (parameterTypes == null) {
+            return new ProxyClass(type, factory, null);
+        }
+        try {
+            return new ProxyClass(type, factory, type.getConstructor(parameterTypes));
+        } catch (NoSuchMethodException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @param constructor the only constructor of the proxy class, already resolved, or null
+     */
+    static ProxyClass of(final Class<?> type, final ProxyFactory<?> factory, final Constructor<?> constructor) {
+        return new ProxyClass(type, factory, constructor);
+    }
+
+    /**
+     * Instantiates the proxy class, through its factory if it has one.
+     */
+    Object newInstance(final Object... args) {
+        final ProxyBuilderListener listener = ProxyBuilder.getListener();
+        final long startNanos = listener == null ? 0 : System.nanoTime();
+        final Object proxy;
+        if (factory != null) {
+            proxy = factory.newInstance((InvocationHandler) args[0]);
+        } else {
+            try {
+                proxy = constructor.newInstance(args);
+            } catch (IllegalAccessException
+                    | InstantiationException
+                    | InvocationTargetException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        if (listener != null) {
+            listener.onInstanceCreated(type, System.nanoTime() - startNanos);
+        }
+        return proxy;
+    }
+
+    /**
+     * Instantiates a subclass proxy through the constructor which calls the super constructor of
+     * the given parameters, and takes the handler after them.
+     */
+    Object newSubclassInstance(final Class<?>[] superParameterTypes, final Object[] superArgs,
+                               final InvocationHandler handler) {
+        final ProxyBuilderListener listener = ProxyBuilder.getListener();
+        final long startNanos = listener == null ? 0 : System.nanoTime();
+        final Object[] args = Arrays.copyOf(superArgs, superArgs.length + 1);
+        args[superArgs.length] = handler;
+        final Object proxy;
+        try {
+            proxy = getSubclassConstructor(superParameterTypes).newInstance(args);
+        } catch (NoSuchMethodException
+                | IllegalAccessException
+                | InstantiationException
+                | InvocationTargetException e) {
+            throw new RuntimeException(e);
+        }
+        if (listener != null) {
+            listener.onInstanceCreated(type, System.nanoTime() - startNanos);
+        }
+        return proxy;
+    }
+
+    private Constructor<?> getSubclassConstructor(final Class<?>[] superParameterTypes) throws NoSuchMethodException {
+        final Constructor<?> cached = subclassConstructors.get(Arrays.asList(superParameterTypes));
+        if (cached != null) {
+            return cached;
+        }
+        final Class<?>[] parameterTypes = Arrays.copyOf(superParameterTypes, superParameterTypes.length + 1);
+        parameterTypes[superParameterTypes.length] = InvocationHandler.class;
+        final Constructor<?> constructor = type.getConstructor(parameterTypes);
+        // 调用者的数组可能被修改，key 使用拷贝
+        subclassConstructors.putIfAbsent(Arrays.asList(Arrays.copyOf(parameterTypes, superParameterTypes.length)),
+                constructor);
+        return constructor;
+    }
+}
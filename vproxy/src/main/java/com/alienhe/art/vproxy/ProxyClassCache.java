@@ -0,0 +1,454 @@
+package com.alienhe.art.vproxy;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Process wide cache of generated proxy classes, keyed by interfaces (or the superclass of a
+ * subclass proxy), handler type, variant and parent class loader. The variant stands for anything
+ * else the generated code depends on, like the intercepted methods of a delegating proxy, and is
+ * compared by equals, or by identity when it is a class.
+ * <p>
+ * A cached proxy class references its own class loader, which in turn references the parent
+ * loader and the interfaces. Holding it strongly would therefore keep those loaders alive forever,
+ * so entries are only held strongly when every loader they reach can never be collected anyway
+ * (the boot class loader and the loader of this library, or one of its ancestors). Everything
+ * else is held weakly and is dropped together with the loaders.
+ *
+ * @author alienhe
+ */
+final class ProxyClassCache {
+
+    private final ConcurrentMap<Key, Entry> map = new ConcurrentHashMap<>();
+
+    private final ReferenceQueue<Object> staleQueue = new ReferenceQueue<>();
+
+    /**
+     * 正在生成的代理类，同一个 key 只生成一次，其他线程等待结果
+     */
+    private final ConcurrentMap<Key, FutureTask<ProxyClass>> pending = new ConcurrentHashMap<>();
+
+    ProxyClass get(final Class<?>[] interfaceClasses, final HandlerType handlerType, final Object variant,
+                   final ClassLoader parent) {
+        expungeStaleEntries();
+        final Entry entry = map.get(new StrongKey(interfaceClasses, handlerType, variant, parent));
+        return entry == null ? null : entry.get();
+    }
+
+    /**
+     * Returns the cached proxy class, or builds it. Concurrent callers for the same key share a
+     * single build, while builds of other keys run in parallel.
+     *
+     * @param builder builds the proxy class and puts it into this cache
+     */
+    ProxyClass getOrBuild(final Class<?>[] interfaceClasses, final HandlerType handlerType, final Object variant,
+                          final ClassLoader parent, final Callable<ProxyClass> builder) {
+        final ProxyClass cached = get(interfaceClasses, handlerType, variant, parent);
+        if (cached != null) {
+            return cached;
+        }
+
+        final Key key = new StrongKey(interfaceClasses.clone(), handlerType, variant, parent);
+        final FutureTask<ProxyClass> task = new FutureTask<>(builder);
+        FutureTask<ProxyClass> existing = pending.putIfAbsent(key, task);
+        if (existing == null) {
+            existing = task;
+            try {
+                // 上一次生成可能刚刚结束
+                final ProxyClass built = get(interfaceClasses, handlerType, variant, parent);
+                if (built != null) {
+                    return built;
+                }
+                task.run();
+            } finally {
+                pending.remove(key, task);
+            }
+        }
+        return await(existing);
+    }
+
+    /**
+     * Returns the cached proxy classes, building the missing ones in a single batch. Keys which
+     * another thread is building already are not built again but waited for.
+     *
+     * @param builder builds the proxy classes of the given interfaces and puts them into this cache
+     */
+    List<ProxyClass> getOrBuildAll(final List<Class<?>[]> interfaceClasses, final HandlerType handlerType,
+                                   final Object variant, final ClassLoader parent, final BatchBuilder builder) {
+        final ProxyClass[] proxyClasses = new ProxyClass[interfaceClasses.size()];
+        final List<FutureTask<ProxyClass>> tasks = new ArrayList<>(proxyClasses.length);
+        final List<Class<?>[]> claimedClasses = new ArrayList<>();
+        final List<Key> claimedKeys = new ArrayList<>();
+        final List<BatchTask> claimedTasks = new ArrayList<>();
+        for (int i = 0; i < proxyClasses.length; i++) {
+            final Class<?>[] classes = interfaceClasses.get(i);
+            FutureTask<ProxyClass> existing = null;
+            proxyClasses[i] = get(classes, handlerType, variant, parent);
+            if (proxyClasses[i] == null) {
+                final Key key = new StrongKey(classes.clone(), handlerType, variant, parent);
+                final BatchTask task = new BatchTask();
+                existing = pending.putIfAbsent(key, task);
+                if (existing == null) {
+                    // 上一次生成可能刚刚结束
+                    proxyClasses[i] = get(classes, handlerType, variant, parent);
+                    if (proxyClasses[i] != null) {
+                        task.complete(proxyClasses[i]);
+                        pending.remove(key, task);
+                    } else {
+                        claimedClasses.add(classes);
+                        claimedKeys.add(key);
+                        claimedTasks.add(task);
+                        existing = task;
+                    }
+                }
+            }
+            tasks.add(existing);
+        }
+
+        // 先生成自己认领的，再等待其他线程，不会互相等待
+        try {
+            if (!claimedClasses.isEmpty()) {
+                final List<ProxyClass> built = builder.build(claimedClasses);
+                for (int i = 0; i < claimedTasks.size(); i++) {
+                    claimedTasks.get(i).complete(built.get(i));
+                }
+            }
+        } catch (RuntimeException | Error e) {
+            for (BatchTask task : claimedTasks) {
+                task.fail(e);
+            }
+            throw e;
+        } finally {
+            for (int i = 0; i < claimedKeys.size(); i++) {
+                pending.remove(claimedKeys.get(i), claimedTasks.get(i));
+            }
+        }
+
+        for (int i = 0; i < proxyClasses.length; i++) {
+            if (proxyClasses[i] == null) {
+                proxyClasses[i] = await(tasks.get(i));
+            }
+        }
+        return Arrays.asList(proxyClasses);
+    }
+
+    interface BatchBuilder {
+        List<ProxyClass> build(List<Class<?>[]> interfaceClasses);
+    }
+
+    /**
+     * A pending build of a key which is part of a batch, completed by the thread building it.
+     */
+    private static final class BatchTask extends FutureTask<ProxyClass> {
+        BatchTask() {
+            super(new Callable<ProxyClass>() {
+                @Override
+                public ProxyClass call() {
+                    throw new IllegalStateException("Built as part of a batch");
+                }
+            });
+        }
+
+        void complete(final ProxyClass proxyClass) {
+            set(proxyClass);
+        }
+
+        void fail(final Throwable t) {
+            setException(t);
+        }
+    }
+
+    private static ProxyClass await(final FutureTask<ProxyClass> task) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return task.get();
+                } catch (InterruptedException e) {
+                    // 其他线程的生成结果不能因为当前线程被中断而丢失
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * @return the proxy class that ends up in the cache, which is a previously cached one if
+     * another thread got there first
+     */
+    ProxyClass putIfAbsent(final Class<?>[] interfaceClasses, final HandlerType handlerType, final Object variant,
+                           final ClassLoader parent, final ProxyClass proxyClass) {
+        expungeStaleEntries();
+        final Key key;
+        final Entry entry;
+        if (isPermanent(interfaceClasses) && isPermanent(parent)
+                && (!(variant instanceof Class) || isPermanent(((Class<?>) variant).getClassLoader()))) {
+            key = new StrongKey(interfaceClasses.clone(), handlerType, variant, parent);
+            entry = new StrongEntry(proxyClass);
+        } else {
+            key = new WeakKey(interfaceClasses, handlerType, variant, parent, staleQueue);
+            entry = new WeakEntry(proxyClass);
+        }
+
+        while (true) {
+            final Entry existing = map.putIfAbsent(key, entry);
+            if (existing == null) {
+                return proxyClass;
+            }
+            final ProxyClass cached = existing.get();
+            if (cached != null) {
+                return cached;
+            }
+            // the cached class has been collected in the meantime
+            if (map.replace(key, existing, entry)) {
+                return proxyClass;
+            }
+        }
+    }
+
+    private void expungeStaleEntries() {
+        Reference<?> reference;
+        while ((reference = staleQueue.poll()) != null) {
+            map.remove(((KeyReference<?>) reference).key);
+        }
+    }
+
+    private static boolean isPermanent(final Class<?>[] interfaceClasses) {
+        for (Class<?> interfaceClass : interfaceClasses) {
+            if (!isPermanent(interfaceClass.getClassLoader())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Whether a class loader lives at least as long as this cache.
+     */
+    private static boolean isPermanent(final ClassLoader classLoader) {
+        if (classLoader == null) {
+            return true;
+        }
+        for (ClassLoader loader = ProxyClassCache.class.getClassLoader(); loader != null; loader = loader.getParent()) {
+            if (loader == classLoader) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private abstract static class Key {
+        private final HandlerType handlerType;
+        private final int hash;
+
+        Key(final Class<?>[] interfaceClasses, final HandlerType handlerType, final Object variant,
+            final ClassLoader parent) {
+            this.handlerType = handlerType;
+            int hash = 31 * (31 * handlerType.hashCode() + (variant == null ? 0 : variant.hashCode()))
+                    + System.identityHashCode(parent);
+            for (Class<?> interfaceClass : interfaceClasses) {
+                hash = 31 * hash + System.identityHashCode(interfaceClass);
+            }
+            this.hash = hash;
+        }
+
+        abstract int size();
+
+        abstract Class<?> interfaceClass(int index);
+
+        abstract ClassLoader parent();
+
+        abstract Object variant();
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            final Key key = (Key) o;
+            if (hash != key.hash || handlerType != key.handlerType
+                    || !equalVariants(variant(), key.variant())
+                    || size() != key.size() || parent() != key.parent()) {
+                return false;
+            }
+            for (int i = 0; i < size(); i++) {
+                final Class<?> interfaceClass = interfaceClass(i);
+                if (interfaceClass == null || interfaceClass != key.interfaceClass(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        private static boolean equalVariants(final Object v1, final Object v2) {
+            return v1 == null ? v2 == null : v1.equals(v2);
+        }
+    }
+
+    private static final class StrongKey extends Key {
+        private final Class<?>[] interfaceClasses;
+        private final Object variant;
+        private final ClassLoader parent;
+
+        StrongKey(final Class<?>[] interfaceClasses, final HandlerType handlerType, final Object variant,
+                  final ClassLoader parent) {
+            super(interfaceClasses, handlerType, variant, parent);
+            this.interfaceClasses = interfaceClasses;
+            this.variant = variant;
+            this.parent = parent;
+        }
+
+        @Override
+        int size() {
+            return interfaceClasses.length;
+        }
+
+        @Override
+        Class<?> interfaceClass(final int index) {
+            return interfaceClasses[index];
+        }
+
+        @Override
+        ClassLoader parent() {
+            return parent;
+        }
+
+        @Override
+        Object variant() {
+            return variant;
+        }
+    }
+
+    private static final class WeakKey extends Key {
+        private final KeyReference<Class<?>>[] interfaceClasses;
+        private final KeyReference<ClassLoader> parent;
+        /**
+         * 类以弱引用持有，其余的 variant 不引用 class loader
+         */
+        private final Object variant;
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        WeakKey(final Class<?>[] interfaceClasses, final HandlerType handlerType, final Object variant,
+                final ClassLoader parent, final ReferenceQueue<Object> queue) {
+            super(interfaceClasses, handlerType, variant, parent);
+            this.interfaceClasses = new KeyReference[interfaceClasses.length];
+            for (int i = 0; i < interfaceClasses.length; i++) {
+                this.interfaceClasses[i] = new KeyReference<Class<?>>(interfaceClasses[i], this, queue);
+            }
+            this.parent = parent == null ? null : new KeyReference<>(parent, this, queue);
+            this.variant = variant instanceof Class ? new KeyReference<>(variant, this, queue) : variant;
+        }
+
+        @Override
+        int size() {
+            return interfaceClasses.length;
+        }
+
+        @Override
+        Class<?> interfaceClass(final int index) {
+            return interfaceClasses[index].get();
+        }
+
+        @Override
+        ClassLoader parent() {
+            return parent == null ? null : parent.get();
+        }
+
+        @Override
+        Object variant() {
+            return variant instanceof KeyReference ? ((KeyReference<?>) variant).get() : variant;
+        }
+    }
+
+    private static final class KeyReference<T> extends WeakReference<T> {
+        final Key key;
+
+        KeyReference(final T referent, final Key key, final ReferenceQueue<Object> queue) {
+            super(referent, queue);
+            this.key = key;
+        }
+    }
+
+    private interface Entry {
+        ProxyClass get();
+    }
+
+    private static final class StrongEntry implements Entry {
+        private final ProxyClass proxyClass;
+
+        StrongEntry(final ProxyClass proxyClass) {
+            this.proxyClass = proxyClass;
+        }
+
+        @Override
+        public ProxyClass get() {
+            return proxyClass;
+        }
+    }
+
+    private static final class WeakEntry implements Entry {
+        private final WeakReference<Class<?>> type;
+        /**
+         * 生成的 factory 类在静态字段中持有这个实例，和 proxy class 同时回收
+         */
+        private final WeakReference<ProxyFactory<?>> factory;
+        /**
+         * 构造方法的参数可能引用 interceptor 等其他 class loader 中的类，不强引用，只记录是否只有一个构造方法
+         */
+        private final boolean hasConstructor;
+        /**
+         * 上次返回的实例，连同已经解析的构造方法，在被回收前重复使用
+         */
+        private volatile WeakReference<ProxyClass> proxyClass;
+
+        WeakEntry(final ProxyClass proxyClass) {
+            this.type = new WeakReference<Class<?>>(proxyClass.type);
+            this.factory = proxyClass.factory == null ? null : new WeakReference<ProxyFactory<?>>(proxyClass.factory);
+            this.hasConstructor = proxyClass.constructor != null;
+            this.proxyClass = new WeakReference<>(proxyClass);
+        }
+
+        @Override
+        public ProxyClass get() {
+            final ProxyClass cached = proxyClass.get();
+            if (cached != null) {
+                return cached;
+            }
+            final Class<?> proxyType = type.get();
+            final ProxyFactory<?> proxyFactory = factory == null ? null : factory.get();
+            if (proxyType == null || (factory != null && proxyFactory == null)) {
+                return null;
+            }
+            final ProxyClass resolved = ProxyClass.of(proxyType, proxyFactory,
+                    hasConstructor ? proxyType.getConstructors()[0] : null);
+            proxyClass = new WeakReference<>(resolved);
+            return resolved;
+        }
+    }
+}
@@ -0,0 +1,242 @@
+package com.alienhe.art.vproxy;
+
+import com.alienhe.art.vproxy.dex.writer.DexWriter;
+import com.alienhe.vproxy.BuildConfig;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Persistent cache of generated proxy dex files.
+ * <p>
+ * Every dex file is named after a fingerprint of everything the generated code depends on, so an
+ * existing file can be loaded as it is, and a changed interface (e.g. after an OTA) or a new
+ * version of this library simply leads to a new file.
+ *
+ * @author alienhe
+ */
+final class ProxyDexCache {
+
+    private static final String DEX_FILE_SUFFIX = ".generated.dex";
+
+    private static final int HEADER_MAGIC_SIZE = 8;
+
+    private static final int HEADER_FILE_SIZE_OFFSET = 0x20;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /**
+     * Temporary files of writes which never completed, e.g. because the process was killed, are
+     * removed once they are older than this.
+     */
+    private static final long ABANDONED_TEMP_FILE_AGE_MS = 10 * 60 * 1000;
+
+    private static final String LOCK_FILE_SUFFIX = ".lock";
+
+    private static final String OAT_DIR = "oat";
+
+    private static final String[] OAT_FILE_SUFFIXES = {".odex", ".vdex", ".art"};
+
+    /**
+     * A process can hold only one lock of a file, so the threads of a process take turns first.
+     */
+    private static final ConcurrentMap<String, ReentrantLock> THREAD_LOCKS = new ConcurrentHashMap<>();
+
+    private ProxyDexCache() {
+    }
+
+    /**
+     * Exclusive lock of a dex name across the processes of the app, held while generating,
+     * writing and first loading (and thereby optimizing) the dex file. Waiting processes find
+     * the finished file afterwards and only load it.
+     * <p>
+     * If the file system does not support locks, only the threads of this process are excluded,
+     * which is still safe since dex files are published atomically.
+     */
+    static Lock lock(final File dir, final String dexName) {
+        final File lockFile = new File(dir, dexName + LOCK_FILE_SUFFIX);
+        final String path = lockFile.getAbsolutePath();
+        ReentrantLock threadLock = THREAD_LOCKS.get(path);
+        if (threadLock == null) {
+            final ReentrantLock newLock = new ReentrantLock();
+            threadLock = THREAD_LOCKS.putIfAbsent(path, newLock);
+            if (threadLock == null) {
+                threadLock = newLock;
+            }
+        }
+        threadLock.lock();
+
+        RandomAccessFile file = null;
+        FileLock fileLock = null;
+        try {
+            if (dir.isDirectory() || dir.mkdirs()) {
+                file = new RandomAccessFile(lockFile, "rw");
+                fileLock = file.getChannel().lock();
+            }
+        } catch (IOException | OverlappingFileLockException e) {
+            closeQuietly(file);
+            file = null;
+        }
+        return new Lock(threadLock, file, fileLock);
+    }
+
+    private static void closeQuietly(final Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+            // nothing to do
+        }
+    }
+
+    static final class Lock implements Closeable {
+        private final ReentrantLock threadLock;
+        private final RandomAccessFile file;
+        private final FileLock fileLock;
+
+        private Lock(final ReentrantLock threadLock, final RandomAccessFile file, final FileLock fileLock) {
+            this.threadLock = threadLock;
+            this.file = file;
+            this.fileLock = fileLock;
+        }
+
+        @Override
+        public void close() {
+            try {
+                if (fileLock != null) {
+                    fileLock.release();
+                }
+            } catch (IOException ignored) {
+                // released when the file is closed anyway
+            } finally {
+                closeQuietly(file);
+                threadLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * @param description everything the generated code depends on, like the proxied method
+     *                    signatures in the order they are generated
+     */
+    static String fingerprint(final CharSequence description) {
+        return digest(BuildConfig.VERSION_NAME + '|' + description);
+    }
+
+    /**
+     * @return the first 64 bits of the SHA-1 of the content in hex, plenty to tell apart the
+     * versions of one dex file as well as the proxy classes of one app
+     */
+    static String digest(final CharSequence content) {
+        try {
+            final MessageDigest md = MessageDigest.getInstance("SHA-1");
+            final byte[] digest = md.digest(content.toString().getBytes(Charset.forName("UTF-8")));
+            final char[] hex = new char[16];
+            for (int i = 0; i < hex.length / 2; i++) {
+                hex[2 * i] = HEX_DIGITS[(digest[i] >> 4) & 0x0F];
+                hex[2 * i + 1] = HEX_DIGITS[digest[i] & 0x0F];
+            }
+            return new String(hex);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    static File getDexFile(final File dir, final String name, final String fingerprint) {
+        return new File(dir, name + "." + fingerprint + DEX_FILE_SUFFIX);
+    }
+
+    /**
+     * Cheap sanity check that the file is a completely written dex file.
+     */
+    static boolean isValid(final File dexFile) {
+        if (!dexFile.isFile()) {
+            return false;
+        }
+        final byte[] header = new byte[HEADER_FILE_SIZE_OFFSET + 4];
+        try (InputStream is = new FileInputStream(dexFile)) {
+            int read = 0;
+            while (read < header.length) {
+                final int count = is.read(header, read, header.length - read);
+                if (count < 0) {
+                    return false;
+                }
+                read += count;
+            }
+        } catch (IOException e) {
+            return false;
+        }
+
+        if (header[0] != 0x64 || header[1] != 0x65 || header[2] != 0x78 || header[3] != 0x0a
+                || header[HEADER_MAGIC_SIZE - 1] != 0x00) {
+            return false;
+        }
+        final int fileSize = (header[HEADER_FILE_SIZE_OFFSET] & 0xFF)
+                | (header[HEADER_FILE_SIZE_OFFSET + 1] & 0xFF) << 8
+                | (header[HEADER_FILE_SIZE_OFFSET + 2] & 0xFF) << 16
+                | (header[HEADER_FILE_SIZE_OFFSET + 3] & 0xFF) << 24;
+        return fileSize == dexFile.length();
+    }
+
+    /**
+     * Removes the dex files of other fingerprints of the same name, together with their optimized
+     * counterparts, and abandoned temporary files of that name.
+     */
+    static void removeStale(final File dexFile, final String dexName, final File optimizedDir) {
+        final File[] files = dexFile.getParentFile() == null ? null : dexFile.getParentFile().listFiles();
+        if (files == null) {
+            return;
+        }
+        final String prefix = dexName + ".";
+        final long now = System.currentTimeMillis();
+        for (File file : files) {
+            final String name = file.getName();
+            if (name.startsWith(prefix)
+                    && name.endsWith(DexWriter.TEMP_FILE_SUFFIX)
+                    && now - file.lastModified() > ABANDONED_TEMP_FILE_AGE_MS) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            } else if (name.startsWith(prefix)
+                    && name.endsWith(DEX_FILE_SUFFIX)
+                    && name.indexOf('.', prefix.length()) == name.length() - DEX_FILE_SUFFIX.length()
+                    && !file.equals(dexFile)) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+                //noinspection ResultOfMethodCallIgnored
+                new File(optimizedDir, name).delete();
+                removeOatFiles(dexFile.getParentFile(), name.substring(0, name.length() - ".dex".length()));
+            }
+        }
+    }
+
+    /**
+     * Since Android O the runtime ignores the optimized directory and compiles a dex file into
+     * {@code oat/<isa>/} next to it.
+     */
+    private static void removeOatFiles(final File dir, final String baseName) {
+        final File[] isaDirs = new File(dir, OAT_DIR).listFiles();
+        if (isaDirs == null) {
+            return;
+        }
+        for (File isaDir : isaDirs) {
+            for (String suffix : OAT_FILE_SUFFIXES) {
+                //noinspection ResultOfMethodCallIgnored
+                new File(isaDir, baseName + suffix).delete();
+            }
+        }
+    }
+}
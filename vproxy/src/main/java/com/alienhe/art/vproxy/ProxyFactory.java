@@ -0,0 +1,23 @@
+package com.alienhe.art.vproxy;
+
+import java.lang.reflect.InvocationHandler;
+
+/**
+ * Creates instances of one proxy class, see {@link ProxyBuilder#getProxyFactory}.
+ * <p>
+ * Every proxy class comes with a generated subclass of this class, which instantiates the proxy
+ * with plain {@code new}, so creating an instance costs neither a constructor lookup nor any
+ * reflection. Get the factory once and keep it.
+ *
+ * @author alienhe
+ */
+public abstract class ProxyFactory<T> {
+
+    /**
+     * Only subclassed by the generated factories.
+     */
+    protected ProxyFactory() {
+    }
+
+    public abstract T newInstance(InvocationHandler invocationHandler);
+}
@@ -0,0 +1,77 @@
+package com.alienhe.art.vproxy;
+
+import com.alienhe.art.vproxy.dex.DexBuilder;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+
+/**
+ * The methods of a proxy class, indexed by their ids.
+ * <p>
+ * Methods are sorted by their signature, so the id of a method only changes when the proxied
+ * interfaces change.
+ *
+ * @author alienhe
+ */
+public final class ProxyMethodTable {
+
+    private final Method[] methods;
+
+    private final String[] signatures;
+
+    ProxyMethodTable(final Method[] methods) {
+        this.methods = methods;
+        this.signatures = new String[methods.length];
+        for (int i = 0; i < methods.length; i++) {
+            signatures[i] = signatureOf(methods[i]);
+        }
+    }
+
+    public int size() {
+        return methods.length;
+    }
+
+    public Method getMethod(final int methodId) {
+        return methods[methodId];
+    }
+
+    /**
+     * @return the name and descriptor of the method, e.g. {@code getPackageUid(Ljava/lang/String;II)I}
+     */
+    public String getSignature(final int methodId) {
+        return signatures[methodId];
+    }
+
+    /**
+     * @return the id of the method, or -1 if it is not proxied
+     */
+    public int indexOf(final String name, final Class<?>... parameterTypes) {
+        for (int i = 0; i < methods.length; i++) {
+            if (methods[i].getName().equals(name)
+                    && Arrays.equals(methods[i].getParameterTypes(), parameterTypes)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the id of the method with the given signature, or -1 if it is not proxied
+     */
+    public int indexOf(final String signature) {
+        for (int i = 0; i < signatures.length; i++) {
+            if (signatures[i].equals(signature)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    static String signatureOf(final Method method) {
+        final StringBuilder sb = new StringBuilder(method.getName()).append('(');
+        for (Class<?> parameterType : method.getParameterTypes()) {
+            sb.append(DexBuilder.getTypeDescription(parameterType));
+        }
+        return sb.append(')').append(DexBuilder.getTypeDescription(method.getReturnType())).toString();
+    }
+}
@@ -0,0 +1,89 @@
+package com.alienhe.art.vproxy;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The invocation metrics of all methods of the proxies generated with
+ * {@link ProxyOptions.Builder#metrics}. Proxies of the same method share its metrics.
+ *
+ * @author alienhe
+ */
+public final class ProxyMetrics {
+
+    private static final ConcurrentMap<String, MethodMetrics> METHODS = new ConcurrentHashMap<>();
+
+    /**
+     * 按 id 索引的方法，用于 {@link ProxyTrace} 中只记录 id 的事件
+     */
+    private static final List<String> METHOD_NAMES = new ArrayList<>();
+
+    private ProxyMetrics() {
+    }
+
+    /**
+     * Called by the static initializers of the generated proxies.
+     *
+     * @param method the declaring class and signature of the method
+     */
+    public static MethodMetrics register(final String method) {
+        final MethodMetrics metrics = METHODS.get(method);
+        if (metrics != null) {
+            return metrics;
+        }
+        synchronized (METHOD_NAMES) {
+            final MethodMetrics existing = METHODS.get(method);
+            if (existing != null) {
+                return existing;
+            }
+            final MethodMetrics newMetrics = new MethodMetrics(method, METHOD_NAMES.size());
+            METHOD_NAMES.add(method);
+            METHODS.put(method, newMetrics);
+            return newMetrics;
+        }
+    }
+
+    static String getMethod(final int id) {
+        synchronized (METHOD_NAMES) {
+            return METHOD_NAMES.get(id);
+        }
+    }
+
+    /**
+     * @return the metrics of every instrumented method, sorted by method
+     */
+    public static List<MethodMetrics.Snapshot> snapshot() {
+        return snapshot(false);
+    }
+
+    /**
+     * Takes a snapshot and resets the counters, without losing the calls in between.
+     */
+    public static List<MethodMetrics.Snapshot> snapshotAndReset() {
+        return snapshot(true);
+    }
+
+    public static void reset() {
+        for (MethodMetrics metrics : METHODS.values()) {
+            metrics.reset();
+        }
+    }
+
+    private static List<MethodMetrics.Snapshot> snapshot(final boolean reset) {
+        final List<MethodMetrics.Snapshot> snapshots = new ArrayList<>(METHODS.size());
+        for (MethodMetrics metrics : METHODS.values()) {
+            snapshots.add(metrics.snapshot(reset));
+        }
+        Collections.sort(snapshots, new Comparator<MethodMetrics.Snapshot>() {
+            @Override
+            public int compare(final MethodMetrics.Snapshot s1, final MethodMetrics.Snapshot s2) {
+                return s1.getMethod().compareTo(s2.getMethod());
+            }
+        });
+        return snapshots;
+    }
+}
@@ -0,0 +1,99 @@
+package com.alienhe.art.vproxy;
+
+/**
+ * Options controlling how proxy classes are generated and loaded.
+ *
+ * @author alienhe
+ */
+public final class ProxyOptions {
+
+    public static final ProxyOptions DEFAULT = newBuilder().build();
+
+    /**
+     * 在 API 26+ 上直接从内存加载 dex，不落地文件
+     */
+    final boolean inMemory;
+
+    /**
+     * 所有代理类共用一个 class loader
+     */
+    final boolean shareClassLoader;
+
+    /**
+     * 在生成的代码中统计调用次数和耗时
+     */
+    final boolean metrics;
+
+    /**
+     * 不计算 dex 头中的 SHA-1 签名
+     */
+    final boolean skipSignature;
+
+    private ProxyOptions(final Builder builder) {
+        inMemory = builder.inMemory;
+        shareClassLoader = builder.shareClassLoader;
+        metrics = builder.metrics;
+        skipSignature = builder.skipSignature;
+    }
+
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    public static final class Builder {
+        private boolean inMemory;
+        private boolean shareClassLoader;
+        private boolean metrics;
+        private boolean skipSignature;
+
+        private Builder() {
+        }
+
+        /**
+         * Loads the generated dex through {@code InMemoryDexClassLoader} on API 26+, without
+         * writing any file. Such dex files are neither cached across launches nor compiled ahead
+         * of time; below API 26 the regular file based loading is used.
+         */
+        public Builder inMemory(final boolean inMemory) {
+            this.inMemory = inMemory;
+            return this;
+        }
+
+        /**
+         * Loads the generated dex into a class loader shared by the whole process, appending it
+         * to the dex files loaded before, instead of creating a class loader per dex file. A new
+         * class loader is still used when appending is not possible, e.g. for a dex file loaded
+         * in memory or with another parent class loader.
+         */
+        public Builder shareClassLoader(final boolean shareClassLoader) {
+            this.shareClassLoader = shareClassLoader;
+            return this;
+        }
+
+        /**
+         * Generates proxies which count the calls of every method they implement, and time the
+         * handler, the delegate or the hooks of an interceptor, see {@link ProxyMetrics}. Their
+         * calls are also recorded into {@link ProxyTrace} while it is started. Such proxies are
+         * generated and cached separately from the uninstrumented ones, whose code stays the same.
+         */
+        public Builder metrics(final boolean metrics) {
+            this.metrics = metrics;
+            return this;
+        }
+
+        /**
+         * Leaves the SHA-1 signature in the header of generated dex files zero. ART only checks
+         * the Adler32 checksum, which is still computed, and the dex cache is keyed by what the
+         * code is generated from rather than by its content, so the signature is only of use to
+         * tools inspecting the files. Skipping it saves hashing the whole file on every build.
+         */
+        public Builder skipSignature(final boolean skipSignature) {
+            this.skipSignature = skipSignature;
+            return this;
+        }
+
+        public ProxyOptions build() {
+            return new ProxyOptions(this);
+        }
+    }
+}
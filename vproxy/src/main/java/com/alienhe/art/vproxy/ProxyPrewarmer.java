@@ -0,0 +1,160 @@
+package com.alienhe.art.vproxy;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Generates proxy classes ahead of their first use on a small pool of background threads, see
+ * {@link ProxyBuilder#prewarm}.
+ * <p>
+ * A thread needing a proxy class which a background thread is prewarming already waits for it
+ * instead of generating it again. If its prewarm has not started yet, the thread generates just
+ * the class it needs itself, so it never waits behind unrelated work, and the prewarm later skips
+ * the classes generated meanwhile.
+ *
+ * @author alienhe
+ */
+final class ProxyPrewarmer {
+
+    private static final int MAX_THREADS = 2;
+
+    private static final long KEEP_ALIVE_SECONDS = 10;
+
+    private final ConcurrentMap<TaskKey, PrewarmTask> tasks = new ConcurrentHashMap<>();
+
+    private final ThreadPoolExecutor executor;
+
+    ProxyPrewarmer() {
+        executor = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new PrewarmThreadFactory());
+        // 空闲时不保留线程
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Schedules the generation of the proxy classes of some interfaces.
+     *
+     * @param metrics   whether the proxy classes are generated with {@link ProxyOptions.Builder#metrics}
+     * @param generator generates the proxy classes of {@code interfaceClasses}, in their order
+     */
+    Future<List<Class<?>>> submit(final List<Class<?>> interfaceClasses, final boolean metrics,
+                                  final Callable<List<Class<?>>> generator) {
+        final List<TaskKey> keys = new ArrayList<>(interfaceClasses.size());
+        for (Class<?> interfaceClass : interfaceClasses) {
+            keys.add(new TaskKey(interfaceClass, metrics));
+        }
+        final PrewarmTask task = new PrewarmTask(generator, keys);
+        // 已经在预热的接口继续由原来的任务负责
+        for (TaskKey key : keys) {
+            tasks.putIfAbsent(key, task);
+        }
+        executor.execute(task);
+        return task;
+    }
+
+    /**
+     * Waits until a prewarm of the interface which is running already is done. Failures are left
+     * to the caller, which generates the class itself.
+     */
+    void await(final Class<?> interfaceClass, final boolean metrics) {
+        final PrewarmTask task = tasks.get(new TaskKey(interfaceClass, metrics));
+        if (task == null || !task.started) {
+            return;
+        }
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    task.get();
+                    return;
+                } catch (ExecutionException ignored) {
+                    // generated again by the caller, which then sees the failure itself
+                    return;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private final class PrewarmTask extends FutureTask<List<Class<?>>> {
+        private final List<TaskKey> keys;
+        private volatile boolean started;
+
+        PrewarmTask(final Callable<List<Class<?>>> generator, final List<TaskKey> keys) {
+            super(generator);
+            this.keys = keys;
+        }
+
+        @Override
+        public void run() {
+            started = true;
+            super.run();
+        }
+
+        @Override
+        protected void done() {
+            for (TaskKey key : keys) {
+                tasks.remove(key, this);
+            }
+        }
+    }
+
+    /**
+     * Proxy classes with and without metrics are different classes, prewarmed independently.
+     */
+    private static final class TaskKey {
+        private final Class<?> interfaceClass;
+        private final boolean metrics;
+
+        TaskKey(final Class<?> interfaceClass, final boolean metrics) {
+            this.interfaceClass = interfaceClass;
+            this.metrics = metrics;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) return true;
+            if (!(o instanceof TaskKey)) return false;
+            final TaskKey key = (TaskKey) o;
+            return interfaceClass == key.interfaceClass && metrics == key.metrics;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(interfaceClass) + (metrics ? 1 : 0);
+        }
+    }
+
+    private static final class PrewarmThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            final Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, "vproxy-prewarm-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package com.alienhe.art.vproxy;
+
+import android.os.Process;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records the most recent calls of the proxies generated with {@link ProxyOptions.Builder#metrics}
+ * into a fixed-size ring buffer while started, to be exported as Chrome trace-event JSON which can
+ * be opened in Perfetto or {@code chrome://tracing}.
+ * <p>
+ * Every call which returned or threw is one event with the method, the thread id
+ * ({@link Thread#getId()}), the start time and the duration of the handler, the delegate or the
+ * hooks of an interceptor, whichever kind of stub the proxy was generated with. Recording takes
+ * a slot with an atomic increment, claims it with a compare-and-set and does not allocate; once
+ * the buffer is full the oldest events are overwritten. An event is dropped when its slot is still
+ * being written by a writer one lap behind or ahead, so that events are never torn, which mostly
+ * happens with small capacities. An event whose slot is being overwritten while exporting is
+ * skipped.
+ *
+ * @author alienhe
+ */
+public final class ProxyTrace {
+
+    // 每个 slot 依次为序号、方法 id 和是否抛出异常、线程 id、开始时间、耗时
+    private static final int SEQUENCE = 0;
+    private static final int METHOD = 1;
+    private static final int THREAD = 2;
+    private static final int START_NANOS = 3;
+    private static final int NANOS = 4;
+    private static final int SLOT_SIZE = 5;
+
+    private static volatile ProxyTrace recording;
+
+    private static ProxyTrace last;
+
+    private final int mask;
+
+    private final AtomicLongArray slots;
+
+    private final AtomicLong next = new AtomicLong();
+
+    private ProxyTrace(final int capacity) {
+        mask = capacity - 1;
+        slots = new AtomicLongArray(capacity * SLOT_SIZE);
+    }
+
+    /**
+     * Starts recording into a new buffer, dropping the events recorded before.
+     *
+     * @param capacity the number of events kept, rounded up to a power of two
+     */
+    public static synchronized void start(final int capacity) {
+        if (capacity <= 0 || capacity > 1 << 24) {
+            throw new IllegalArgumentException("capacity " + capacity);
+        }
+        final int size = Integer.highestOneBit(capacity) == capacity
+                ? capacity : Integer.highestOneBit(capacity) << 1;
+        last = new ProxyTrace(size);
+        recording = last;
+    }
+
+    /**
+     * Stops recording, keeping the recorded events for {@link #writeChromeTrace}.
+     */
+    public static synchronized void stop() {
+        recording = null;
+    }
+
+    public static boolean isRecording() {
+        return recording != null;
+    }
+
+    static void record(final int methodId, final long startNanos, final long nanos, final boolean threw) {
+        final ProxyTrace trace = recording;
+        if (trace != null) {
+            trace.add(methodId, startNanos, nanos, threw);
+        }
+    }
+
+    private void add(final int methodId, final long startNanos, final long nanos, final boolean threw) {
+        final long sequence = next.getAndIncrement();
+        final int slot = ((int) sequence & mask) * SLOT_SIZE;
+        // 用 CAS 把序号改为负数来占用 slot：前一圈的写入者还没写完，或者后一圈已经写过时放弃这个事件，
+        // 否则两个写入者交错写入的字段会被当成一个事件。读取时前后两次读到相同的序号才有效
+        final long written = slots.get(slot + SEQUENCE);
+        if (written < 0 || written > sequence || !slots.compareAndSet(slot + SEQUENCE, written, -(sequence + 1))) {
+            return;
+        }
+        slots.lazySet(slot + METHOD, ((long) methodId << 1) | (threw ? 1 : 0));
+        slots.lazySet(slot + THREAD, Thread.currentThread().getId());
+        slots.lazySet(slot + START_NANOS, startNanos);
+        slots.lazySet(slot + NANOS, nanos);
+        slots.lazySet(slot + SEQUENCE, sequence + 1);
+    }
+
+    /**
+     * Writes the events of the current or last recording, oldest first, as a Chrome trace-event
+     * JSON object. Can be called while recording.
+     */
+    public static void writeChromeTrace(final Writer writer) throws IOException {
+        final ProxyTrace trace;
+        synchronized (ProxyTrace.class) {
+            trace = last;
+        }
+        final int pid = Process.myPid();
+        writer.write("{\"displayTimeUnit\":\"ns\",\"traceEvents\":[");
+        if (trace != null) {
+            trace.writeEvents(writer, pid);
+        }
+        writer.write("]}");
+        writer.flush();
+    }
+
+    private void writeEvents(final Writer writer, final int pid) throws IOException {
+        final long end = next.get();
+        final StringBuilder sb = new StringBuilder(256);
+        boolean first = true;
+        for (long sequence = Math.max(0, end - (mask + 1)); sequence < end; sequence++) {
+            final int slot = ((int) sequence & mask) * SLOT_SIZE;
+            if (slots.get(slot + SEQUENCE) != sequence + 1) {
+                continue;
+            }
+            final long method = slots.get(slot + METHOD);
+            final long thread = slots.get(slot + THREAD);
+            final long startNanos = slots.get(slot + START_NANOS);
+            final long nanos = slots.get(slot + NANOS);
+            if (slots.get(slot + SEQUENCE) != sequence + 1) {
+                continue;
+            }
+
+            sb.setLength(0);
+            if (!first) {
+                sb.append(',');
+            }
+            first = false;
+            sb.append("{\"name\":\"");
+            appendEscaped(sb, ProxyMetrics.getMethod((int) (method >>> 1)));
+            sb.append("\",\"cat\":\"vproxy\",\"ph\":\"X\",\"ts\":");
+            appendMicros(sb, startNanos);
+            sb.append(",\"dur\":");
+            appendMicros(sb, nanos);
+            sb.append(",\"pid\":").append(pid)
+                    .append(",\"tid\":").append(thread)
+                    .append(",\"args\":{\"threw\":").append((method & 1) != 0)
+                    .append("}}");
+            writer.append(sb);
+        }
+    }
+
+    private static void appendMicros(final StringBuilder sb, final long nanos) {
+        final long fraction = nanos % 1000;
+        sb.append(nanos / 1000).append('.');
+        if (fraction < 100) {
+            sb.append('0');
+        }
+        if (fraction < 10) {
+            sb.append('0');
+        }
+        sb.append(fraction);
+    }
+
+    private static void appendEscaped(final StringBuilder sb, final String s) {
+        for (int i = 0; i < s.length(); i++) {
+            final char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+    }
+}
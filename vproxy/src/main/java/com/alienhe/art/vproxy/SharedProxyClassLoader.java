@@ -0,0 +1,130 @@
+package com.alienhe.art.vproxy;
+
+import android.os.Build;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import dalvik.system.BaseDexClassLoader;
+import dalvik.system.DexClassLoader;
+
+/**
+ * The class loader all proxy classes of the process share, see
+ * {@link ProxyOptions.Builder#shareClassLoader}.
+ * <p>
+ * It is created with the first dex file, and every later dex file is appended to its
+ * {@code DexPathList}, like multidex does, instead of getting a class loader of its own. This
+ * saves the class table, the dex mapping and the lookup hops of a class loader per dex file.
+ * <p>
+ * The classes of a loader cannot be replaced, so a dex file defining a class which an earlier
+ * one already defines, or one with another parent, is not appended; the caller loads it with a
+ * new class loader instead.
+ *
+ * @author alienhe
+ */
+final class SharedProxyClassLoader {
+
+    private static BaseDexClassLoader classLoader;
+
+    /**
+     * 已加入的类及其 dex 文件路径
+     */
+    private static final Map<String, String> CLASS_DEX_PATHS = new HashMap<>();
+
+    private static boolean appendUnsupported;
+
+    private SharedProxyClassLoader() {
+    }
+
+    /**
+     * Adds a dex file to the shared class loader.
+     *
+     * @param classNames the classes the dex file defines
+     * @return the shared class loader, or null if the dex file has to be loaded by a new one
+     */
+    static synchronized ClassLoader add(final File dexFile, final File optimizedDirectory,
+                                        final List<String> classNames, final ClassLoader parent) {
+        final String dexPath = dexFile.getAbsolutePath();
+        if (classLoader == null) {
+            classLoader = new DexClassLoader(dexPath, optimizedDirectory.getAbsolutePath(), null, parent);
+            putClasses(classNames, dexPath);
+            return classLoader;
+        }
+        if (appendUnsupported || classLoader.getParent() != parent) {
+            return null;
+        }
+        for (String className : classNames) {
+            final String definingPath = CLASS_DEX_PATHS.get(className);
+            if (definingPath != null && !definingPath.equals(dexPath)) {
+                return null;
+            }
+        }
+
+        try {
+            appendDexPath(classLoader, dexFile, optimizedDirectory);
+        } catch (ReflectiveOperationException e) {
+            // 隐藏 API 不可用，之后都使用独立的 class loader
+            appendUnsupported = true;
+            return null;
+        } catch (IOException e) {
+            return null;
+        }
+        putClasses(classNames, dexPath);
+        return classLoader;
+    }
+
+    private static void putClasses(final List<String> classNames, final String dexPath) {
+        for (String className : classNames) {
+            CLASS_DEX_PATHS.put(className, dexPath);
+        }
+    }
+
+    private static void appendDexPath(final BaseDexClassLoader loader, final File dexFile,
+                                      final File optimizedDirectory)
+            throws ReflectiveOperationException, IOException {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            final Method addDexPath = BaseDexClassLoader.class.getDeclaredMethod("addDexPath", String.class);
+            addDexPath.setAccessible(true);
+            addDexPath.invoke(loader, dexFile.getAbsolutePath());
+            return;
+        }
+
+        final Field pathListField = BaseDexClassLoader.class.getDeclaredField("pathList");
+        pathListField.setAccessible(true);
+        final Object pathList = pathListField.get(loader);
+        final Field dexElementsField = pathList.getClass().getDeclaredField("dexElements");
+        dexElementsField.setAccessible(true);
+
+        final ArrayList<File> files = new ArrayList<>();
+        files.add(dexFile);
+        final ArrayList<IOException> suppressedExceptions = new ArrayList<>();
+        final Method makeElements;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            makeElements = pathList.getClass().getDeclaredMethod("makePathElements",
+                    List.class, File.class, List.class);
+        } else {
+            makeElements = pathList.getClass().getDeclaredMethod("makeDexElements",
+                    ArrayList.class, File.class, ArrayList.class);
+        }
+        makeElements.setAccessible(true);
+        final Object[] addedElements = (Object[]) makeElements.invoke(null, files, optimizedDirectory,
+                suppressedExceptions);
+        if (!suppressedExceptions.isEmpty()) {
+            throw suppressedExceptions.get(0);
+        }
+
+        final Object[] elements = (Object[]) dexElementsField.get(pathList);
+        final Object[] newElements = (Object[]) Array.newInstance(elements.getClass().getComponentType(),
+                elements.length + addedElements.length);
+        System.arraycopy(elements, 0, newElements, 0, elements.length);
+        System.arraycopy(addedElements, 0, newElements, elements.length, addedElements.length);
+        dexElementsField.set(pathList, newElements);
+    }
+}
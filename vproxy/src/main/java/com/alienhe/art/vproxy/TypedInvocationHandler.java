@@ -0,0 +1,55 @@
+package com.alienhe.art.vproxy;
+
+/**
+ * An {@link IndexedInvocationHandler} with entry points specialized by return type, which receive
+ * the arguments in primitive and reference slots instead of a boxed {@code Object[]}, so that a
+ * call allocates nothing.
+ * <p>
+ * The arguments are passed in their declaration order: the n-th primitive argument goes to slot
+ * {@code pn}, the n-th reference argument to slot {@code on}, and unused slots are 0 or null.
+ * Primitive slots hold the raw bits of the value:
+ * <ul>
+ * <li>boolean, byte, char, short and int are widened like a cast to long, a boolean being 0 or 1</li>
+ * <li>long as it is</li>
+ * <li>float as {@link Float#floatToRawIntBits} in the low 32 bits, read back with
+ * {@code Float.intBitsToFloat((int) p)}</li>
+ * <li>double as {@link Double#doubleToRawLongBits}, read back with {@code Double.longBitsToDouble(p)}</li>
+ * </ul>
+ * Methods with more than {@link #PRIMITIVE_SLOTS} primitive or {@link #REFERENCE_SLOTS} reference
+ * arguments fall back to the boxed {@link #invoke(Object, int, Object[])}.
+ * <p>
+ * {@code invokeInt} serves the int, byte, char and short methods, whose results are narrowed to
+ * the return type.
+ * <p>
+ * Only proxies created with {@link ProxyBuilder#newTypedProxyInstance} call these entry points,
+ * {@link ProxyBuilder#newIndexedProxyInstance} uses it as a plain {@link IndexedInvocationHandler}.
+ *
+ * @author alienhe
+ */
+public interface TypedInvocationHandler extends IndexedInvocationHandler {
+
+    int PRIMITIVE_SLOTS = 4;
+
+    int REFERENCE_SLOTS = 4;
+
+    void invokeVoid(Object proxy, int methodId, long p0, long p1, long p2, long p3,
+                    Object o0, Object o1, Object o2, Object o3) throws Throwable;
+
+    boolean invokeBoolean(Object proxy, int methodId, long p0, long p1, long p2, long p3,
+                          Object o0, Object o1, Object o2, Object o3) throws Throwable;
+
+    int invokeInt(Object proxy, int methodId, long p0, long p1, long p2, long p3,
+                  Object o0, Object o1, Object o2, Object o3) throws Throwable;
+
+    long invokeLong(Object proxy, int methodId, long p0, long p1, long p2, long p3,
+                    Object o0, Object o1, Object o2, Object o3) throws Throwable;
+
+    float invokeFloat(Object proxy, int methodId, long p0, long p1, long p2, long p3,
+                      Object o0, Object o1, Object o2, Object o3) throws Throwable;
+
+    double invokeDouble(Object proxy, int methodId, long p0, long p1, long p2, long p3,
+                        Object o0, Object o1, Object o2, Object o3) throws Throwable;
+
+    Object invokeObject(Object proxy, int methodId, long p0, long p1, long p2, long p3,
+                        Object o0, Object o1, Object o2, Object o3) throws Throwable;
+}
@@ -114,7 +114,7 @@ public class DexBuilder {
         return dexClassDef;
     }
 
-    private static String getTypeDescription(final Class<?> type) {
+    public static String getTypeDescription(final Class<?> type) {
         if (void.class == type) {
             return "V";
         }
@@ -122,7 +122,7 @@ public class DexBuilder {
             return "Z";
         }
         if (byte.class == type) {
-            return "Z";
+            return "B";
         }
         if (short.class == type) {
             return "S";
@@ -20,6 +20,8 @@ public class DexClassDef {
 
     // TODO support static_values_off
 
+    public final List<DexFieldDef> staticFields;
+
     public final List<DexFieldDef> instanceFields;
 
     public final List<DexMethodDef> directMethods;
@@ -31,6 +33,7 @@ public class DexClassDef {
         accessFlags = builder.accessFlags;
         superClass = builder.superClass;
         interfaces = builder.interfaces;
+        staticFields = builder.staticFields;
         instanceFields = builder.instanceFields;
         directMethods = builder.directMethods;
         virtualMethods = builder.virtualMethods;
@@ -41,6 +44,7 @@ public class DexClassDef {
         private AccessFlags accessFlags;
         private DexType superClass;
         private final List<DexType> interfaces = new ArrayList<>();
+        private final List<DexFieldDef> staticFields = new ArrayList<>();
         private final List<DexFieldDef> instanceFields = new ArrayList<>();
         private final List<DexMethodDef> directMethods = new ArrayList<>();
         private final List<DexMethodDef> virtualMethods = new ArrayList<>();
@@ -70,6 +74,11 @@ public class DexClassDef {
             return this;
         }
 
+        public Builder staticField(final DexField field, final AccessFlags accessFlags) {
+            staticFields.add(new DexFieldDef(field, accessFlags));
+            return this;
+        }
+
         public Builder instanceField(final DexField field, final AccessFlags accessFlags) {
             instanceFields.add(new DexFieldDef(field, accessFlags));
             return this;
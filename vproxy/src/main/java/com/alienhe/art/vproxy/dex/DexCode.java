@@ -27,11 +27,17 @@ public class DexCode {
 
     public final List<DexInstruction> instructions;
 
+    /**
+     * 按起始指令排序且互不重叠的 try 块
+     */
+    public final List<CatchAll> tries;
+
     private DexCode(final Builder builder) {
         registersSize = builder.registersSize;
         insSize = builder.insSize;
         outsSize = builder.outsSize;
         instructions = builder.instructions;
+        tries = builder.tries;
     }
 
     public static Builder newBuilder() {
@@ -43,6 +49,7 @@ public class DexCode {
         private int insSize;
         private int outsSize;
         private final List<DexInstruction> instructions = new ArrayList<>();
+        private final List<CatchAll> tries = new ArrayList<>();
 
         private Builder() {
         }
@@ -67,8 +74,40 @@ public class DexCode {
             return this;
         }
 
+        /**
+         * @return the index of the next instruction
+         */
+        public int size() {
+            return instructions.size();
+        }
+
+        /**
+         * Catches everything thrown by the instructions {@code [start, end)}, continuing at the
+         * instruction {@code handler}, which should be a {@code move-exception}. Must be called in
+         * the order of the instructions.
+         */
+        public Builder catchAll(final int start, final int end, final int handler) {
+            this.tries.add(new CatchAll(start, end, handler));
+            return this;
+        }
+
         public DexCode build() {
             return new DexCode(this);
         }
     }
+
+    /**
+     * A try block with a catch-all handler only, by instruction index.
+     */
+    public static final class CatchAll {
+        public final int start;
+        public final int end;
+        public final int handler;
+
+        CatchAll(final int start, final int end, final int handler) {
+            this.start = start;
+            this.end = end;
+            this.handler = handler;
+        }
+    }
 }
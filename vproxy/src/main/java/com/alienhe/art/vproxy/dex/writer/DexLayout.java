@@ -0,0 +1,174 @@
+package com.alienhe.art.vproxy.dex.writer;
+
+import com.alienhe.art.vproxy.dex.Dex;
+import com.alienhe.art.vproxy.dex.DexClassDef;
+import com.alienhe.art.vproxy.dex.DexCode;
+import com.alienhe.art.vproxy.dex.DexFieldDef;
+import com.alienhe.art.vproxy.dex.DexMethodDef;
+import com.alienhe.art.vproxy.dex.DexProto;
+import com.alienhe.art.vproxy.dex.DexString;
+import com.alienhe.art.vproxy.dex.DexType;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Computes the exact size of the dex file {@link DexWriter} writes for a {@link Dex}, laying the
+ * sections out in the same order, so that it is written into a single buffer of that size.
+ *
+ * @author alienhe
+ */
+final class DexLayout {
+
+    private static final int HEADER_SIZE = 0x70;
+
+    private static final int MAP_ITEM_SIZE = 12;
+
+    private int position;
+
+    private int mapEntryCount;
+
+    private DexLayout() {
+    }
+
+    static int computeSize(final Dex dex) {
+        return new DexLayout().layout(dex);
+    }
+
+    static int uleb128Size(int value) {
+        int size = 1;
+        while ((value >>>= 7) != 0) {
+            size++;
+        }
+        return size;
+    }
+
+    private int layout(final Dex dex) {
+        // header、string_ids、type_ids、proto_ids、method_ids、class_defs、string_data、class_data 和 map_list 总是存在
+        mapEntryCount = 9;
+        position = HEADER_SIZE
+                + dex.strings.size() * 4
+                + dex.types.size() * 4
+                + dex.protos.size() * 12
+                + dex.fields.size() * 8
+                + dex.methods.size() * 8
+                + dex.classDefs.size() * 32;
+        if (!dex.fields.isEmpty()) {
+            mapEntryCount++;
+        }
+
+        for (DexString string : dex.strings) {
+            position += uleb128Size(string.value.length()) + Mutf8.encodedLength(string.value, 0) + 1;
+        }
+
+        boolean hasTypeLists = false;
+        for (DexProto proto : dex.protos) {
+            hasTypeLists |= addTypeList(proto.argumentTypes);
+        }
+        for (DexClassDef classDef : dex.classDefs) {
+            hasTypeLists |= addTypeList(classDef.interfaces);
+        }
+        if (hasTypeLists) {
+            mapEntryCount++;
+        }
+
+        final int[][] directCodeOffsets = new int[dex.classDefs.size()][];
+        final int[][] virtualCodeOffsets = new int[dex.classDefs.size()][];
+        boolean hasCodeItems = false;
+        for (int i = 0; i < dex.classDefs.size(); i++) {
+            final DexClassDef classDef = dex.classDefs.get(i);
+            directCodeOffsets[i] = addCodeItems(classDef.directMethods);
+            virtualCodeOffsets[i] = addCodeItems(classDef.virtualMethods);
+            hasCodeItems |= directCodeOffsets[i].length + virtualCodeOffsets[i].length > 0;
+        }
+        if (hasCodeItems) {
+            mapEntryCount++;
+        }
+
+        for (int i = 0; i < dex.classDefs.size(); i++) {
+            final DexClassDef classDef = dex.classDefs.get(i);
+            position += uleb128Size(classDef.staticFields.size())
+                    + uleb128Size(classDef.instanceFields.size())
+                    + uleb128Size(classDef.directMethods.size())
+                    + uleb128Size(classDef.virtualMethods.size());
+            addClassFields(classDef.staticFields);
+            addClassFields(classDef.instanceFields);
+            addClassMethods(classDef.directMethods, directCodeOffsets[i]);
+            addClassMethods(classDef.virtualMethods, virtualCodeOffsets[i]);
+        }
+
+        align4Bytes();
+        return position + 4 + mapEntryCount * MAP_ITEM_SIZE;
+    }
+
+    private boolean addTypeList(final List<DexType> typeList) {
+        if (typeList.isEmpty()) {
+            return false;
+        }
+        align4Bytes();
+        position += 4 + typeList.size() * 2;
+        return true;
+    }
+
+    private int[] addCodeItems(final List<DexMethodDef> methods) {
+        final int[] offsets = new int[methods.size()];
+        for (int i = 0; i < offsets.length; i++) {
+            align4Bytes();
+            offsets[i] = position;
+            addCodeItem(methods.get(i).code);
+        }
+        return offsets;
+    }
+
+    private void addCodeItem(final DexCode code) {
+        final int[] addresses = new int[code.instructions.size() + 1];
+        for (int i = 0; i < code.instructions.size(); i++) {
+            addresses[i + 1] = addresses[i] + code.instructions.get(i).getByteCode().length;
+        }
+        final int insnsSize = addresses[code.instructions.size()];
+        position += 16 + insnsSize * 2;
+
+        if (!code.tries.isEmpty()) {
+            position += (insnsSize & 1) * 2 + code.tries.size() * 8 + uleb128Size(code.tries.size());
+            for (DexCode.CatchAll tryBlock : code.tries) {
+                position += 1 + uleb128Size(addresses[tryBlock.handler]);
+            }
+        }
+    }
+
+    private void addClassFields(final List<DexFieldDef> fields) {
+        final int[] indexes = new int[fields.size()];
+        for (int i = 0; i < indexes.length; i++) {
+            final DexFieldDef field = fields.get(i);
+            indexes[i] = field.field.index;
+            position += uleb128Size(field.accessFlags.value);
+        }
+        addIndexDiffs(indexes);
+    }
+
+    private void addClassMethods(final List<DexMethodDef> methods, final int[] codeOffsets) {
+        final int[] indexes = new int[methods.size()];
+        for (int i = 0; i < indexes.length; i++) {
+            final DexMethodDef method = methods.get(i);
+            indexes[i] = method.method.index;
+            position += uleb128Size(method.accessFlags.value) + uleb128Size(codeOffsets[i]);
+        }
+        addIndexDiffs(indexes);
+    }
+
+    /**
+     * encoded_field 和 encoded_method 按 index 排序后只写与前一个的差值
+     */
+    private void addIndexDiffs(final int[] indexes) {
+        Arrays.sort(indexes);
+        int prevIndex = 0;
+        for (int index : indexes) {
+            position += uleb128Size(index - prevIndex);
+            prevIndex = index;
+        }
+    }
+
+    private void align4Bytes() {
+        position = (position + 3) & ~3;
+    }
+}
@@ -1,9 +1,17 @@
 package com.alienhe.art.vproxy.dex.writer;
 
+import com.alienhe.art.vproxy.dex.Dex;
+
 import java.io.Closeable;
-import java.util.Arrays;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 /**
+ * Writes a dex file into a {@link ByteBuffer}: a heap buffer of its own, or a buffer of the caller
+ * such as a direct or memory-mapped one, see {@link DexWriter#write(Dex, ByteBuffer)}. Positions are
+ * relative to the start of the dex file.
+ *
  * @author alienhe
  */
 class DexOutputStream implements Closeable {
@@ -12,9 +20,46 @@ class DexOutputStream implements Closeable {
 
     private int count;
 
-    private byte[] buf = new byte[32];
+    private ByteBuffer buf;
+
+    /**
+     * 在 buf 中的起始位置
+     */
+    private final int base;
+
+    /**
+     * 自己分配的缓冲区在写满时扩容，调用方的缓冲区大小固定
+     */
+    private final boolean growable;
 
-    private byte[] tmp = new byte[8];
+    /**
+     * 未写入的字节是否为 0，否则跳过时需要清零
+     */
+    private final boolean zeroed;
+
+    private DexOutputStream(final ByteBuffer buf, final boolean growable, final boolean zeroed) {
+        this.buf = buf.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        this.base = buf.position();
+        this.growable = growable;
+        this.zeroed = zeroed;
+    }
+
+    /**
+     * @param capacity the size of the dex file, see {@link DexLayout}. The buffer only grows if
+     *                 more is written.
+     */
+    static DexOutputStream allocate(final int capacity) {
+        return new DexOutputStream(ByteBuffer.allocate(capacity), true, true);
+    }
+
+    /**
+     * Writes into the remaining bytes of {@code target}, without changing its position.
+     *
+     * @param zeroed whether the remaining bytes are known to be zero, e.g. a new mapping
+     */
+    static DexOutputStream wrap(final ByteBuffer target, final boolean zeroed) {
+        return new DexOutputStream(target, false, zeroed);
+    }
 
     int getPosition() {
         return pos;
@@ -34,62 +79,104 @@ class DexOutputStream implements Closeable {
 
     }
 
+    /**
+     * Skips {@code size} bytes, leaving them zero or as written before.
+     */
+    void skip(final int size) {
+        ensureCapacity(pos + size);
+        if (!zeroed) {
+            for (int i = 0; i < size; i++) {
+                buf.put(base + pos + i, (byte) 0);
+            }
+        }
+        setPosition(pos + size);
+    }
+
     void write(final byte[] data) {
         write(data, 0, data.length);
     }
 
     void write(final byte[] data, final int start, final int size) {
         ensureCapacity(pos + size);
-        System.arraycopy(data, start, buf, pos, size);
+        buf.position(base + pos);
+        buf.put(data, start, size);
         setPosition(pos + size);
     }
 
     void writeInt(final int value) {
-        tmp[0] = (byte) (value & 0xFF);
-        tmp[1] = (byte) ((value >> 8) & 0xFF);
-        tmp[2] = (byte) ((value >> 16) & 0xFF);
-        tmp[3] = (byte) ((value >> 24) & 0xFF);
-        write(tmp, 0, 4);
+        ensureCapacity(pos + 4);
+        buf.putInt(base + pos, value);
+        setPosition(pos + 4);
     }
 
     void writeShort(final int value) {
-        tmp[0] = (byte) (value & 0xFF);
-        tmp[1] = (byte) ((value >> 8) & 0xFF);
-        write(tmp, 0, 2);
+        ensureCapacity(pos + 2);
+        buf.putShort(base + pos, (short) value);
+        setPosition(pos + 2);
     }
 
     void writeByte(final int value) {
-        tmp[0] = (byte) (value & 0xFF);
-        write(tmp, 0, 1);
+        ensureCapacity(pos + 1);
+        buf.put(base + pos, (byte) value);
+        setPosition(pos + 1);
     }
 
     void writeUleb128(int uleb) {
-        int bi = 0;
+        ensureCapacity(pos + DexLayout.uleb128Size(uleb));
+        int p = base + pos;
         do {
             int b = (uleb & 0x7F);
-            uleb >>= 7;
+            uleb >>>= 7;
             if (uleb != 0) {
                 b |= 0x80;
             }
-            tmp[bi++] = (byte) b;
+            buf.put(p++, (byte) b);
         } while (uleb != 0);
 
-        write(tmp, 0, bi);
+        setPosition(p - base);
+    }
+
+    /**
+     * Writes the MUTF-8 bytes of a string, without the terminating zero.
+     */
+    void writeMutf8(final String s) {
+        int i = 0;
+        // 描述符和方法名几乎都是 ASCII，每个字符一个字节，直到遇到其他字符才按长度重新扩容
+        while (i < s.length() && s.charAt(i) != 0 && s.charAt(i) < 0x80) {
+            i++;
+        }
+        ensureCapacity(pos + i + (i < s.length() ? Mutf8.encodedLength(s, i) : 0));
+        int p = base + pos;
+        for (int j = 0; j < i; j++) {
+            buf.put(p++, (byte) s.charAt(j));
+        }
+        if (i < s.length()) {
+            p = Mutf8.encode(s, i, buf, p);
+        }
+        setPosition(p - base);
     }
 
     private void ensureCapacity(final int capacity) {
-        if (capacity > buf.length) {
-            int newSize = 2 * buf.length;
+        if (base + capacity > buf.limit()) {
+            if (!growable) {
+                throw new BufferOverflowException();
+            }
+            int newSize = Math.max(2 * buf.capacity(), 32);
             while (newSize < capacity) {
                 newSize *= 2;
             }
-            byte[] old = buf;
-            buf = new byte[newSize];
-            System.arraycopy(old, 0, buf, 0, old.length);
+            final ByteBuffer old = buf;
+            buf = ByteBuffer.allocate(newSize).order(ByteOrder.LITTLE_ENDIAN);
+            System.arraycopy(old.array(), 0, buf.array(), 0, old.capacity());
         }
     }
 
-    byte[] toByteArray() {
-        return Arrays.copyOf(buf, count);
+    /**
+     * @return a view of the written bytes, backed by the sink without copying it
+     */
+    ByteBuffer toByteBuffer() {
+        final ByteBuffer view = buf.duplicate();
+        view.limit(base + count).position(base);
+        return view.slice().order(ByteOrder.LITTLE_ENDIAN);
     }
 }
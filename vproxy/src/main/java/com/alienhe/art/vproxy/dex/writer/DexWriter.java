@@ -10,14 +10,23 @@ import com.alienhe.art.vproxy.dex.DexMethodDef;
 import com.alienhe.art.vproxy.dex.DexProto;
 import com.alienhe.art.vproxy.dex.DexString;
 import com.alienhe.art.vproxy.dex.DexType;
-import com.alienhe.art.vproxy.instruction.DexInstruction;
 
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.zip.Adler32;
 
@@ -30,6 +39,19 @@ public class DexWriter {
 
     private static final int ENDIAN_CONSTANT = 0x12345678;
 
+    /**
+     * "dex\n03"，之后为版本号的最后一位和 0
+     */
+    private static final byte[] MAGIC_PREFIX = {0x64, 0x65, 0x78, 0x0a, 0x30, 0x33};
+
+    private static final int HEADER_SIZE = 0x70;
+
+    private static final int CHECKSUM_OFFSET = 8;
+
+    private static final int SIGNATURE_OFFSET = 12;
+
+    private static final int SIGNATURE_SIZE = 20;
+
     private int stringsOffset;
 
     private int typesOffset;
@@ -50,69 +72,213 @@ public class DexWriter {
 
     private final DexMap map = new DexMap();
 
+    /**
+     * Suffix of the files dex files are written to before they are renamed to their final name.
+     */
+    public static final String TEMP_FILE_SUFFIX = ".tmp";
+
     private DexWriter() {
     }
 
+    /**
+     * Writes the dex file to a temporary file next to it, which is then renamed to {@code file}.
+     * Readers of {@code file} therefore see either the previous or the complete new content, but
+     * never a partially written file. The file is read-only, as API 34+ requires for dynamically
+     * loaded code.
+     */
     public static void write(final Dex dex, final File file) throws IOException {
-        new DexWriter().writeInternal(dex, file);
-    }
-
-    private void writeInternal(final Dex dex, final File file) throws IOException {
-        prepareFile(file);
-
-        try (OutputStream os = new FileOutputStream(file)) {
-            try (DexOutputStream stream = new DexOutputStream()) {
-                writeFakeHeader(stream);
-                writeFakeIdsSection(dex, stream);
-
-                // DATA SECTION
-                dataOffset = stream.getPosition();
-                int[] stringOffsets = writeStringsData(dex.strings, stream);
-                int[] protosOffsets = writeProtoArgumentsData(dex.protos, stream);
-                int[] interfaceOffset = writeClassInterfaces(dex.classDefs, stream);
-                CodeItemOffsets[] codeItemOffsets = writeClassCodeItems(dex.classDefs, stream);
-                int[] classDataOffsets = writeClassDefsData(dex.classDefs, codeItemOffsets, stream);
-                mapOffset = stream.getPosition();
-
-                // IDS SECTION
-                stream.setPosition(0x70);
-                stringsOffset = writeStringsIds(stringOffsets, stream);
-                typesOffset = writeTypesIds(dex.types, stream);
-                protosOffset = writeProtosIds(dex.protos, protosOffsets, stream);
-                fieldsOffset = writeFieldsIds(dex.fields, stream);
-                methodsOffset = writeMethodsIds(dex.methods, stream);
-                classDefsOffset = writeClassDefs(dex.classDefs, classDataOffsets, interfaceOffset, stream);
-
-                stream.setPosition(mapOffset);
-                mapOffset = writeMap(stream);
-                dataSize = stream.getPosition() - dataOffset;
-
-                stream.setPosition(0x0);
-                writeHeader(dex, stream);
-
-                os.write(stream.toByteArray());
+        write(write(dex), file);
+    }
+
+    /**
+     * Writes the dex file like {@link #write(Dex, File)}, but encodes it straight into a memory
+     * mapping of the temporary file instead of into a heap buffer written afterwards.
+     */
+    public static void writeMapped(final Dex dex, final File file) throws IOException {
+        final int size = DexLayout.computeSize(dex);
+        final File tempFile = prepareTempFile(file);
+
+        try {
+            try (RandomAccessFile raf = new RandomAccessFile(tempFile, "rw")) {
+                // 映射时文件被扩展到 size，新的内容都为 0
+                final MappedByteBuffer mapping = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+                writeChecksums(new DexWriter().writeInternal(dex, DexOutputStream.wrap(mapping, true)));
+                mapping.force();
+            }
+            publish(tempFile, file);
+        } finally {
+            if (tempFile.exists()) {
+                //noinspection ResultOfMethodCallIgnored
+                tempFile.delete();
             }
-            os.flush();
         }
     }
 
-    private void prepareFile(final File file) throws IOException {
-        if (file.exists()) {
-            //noinspection ResultOfMethodCallIgnored
-            file.delete();
+    /**
+     * Writes the content of a dex file like {@link #write(Dex, File)}.
+     */
+    public static void write(final ByteBuffer buffer, final File file) throws IOException {
+        final File tempFile = prepareTempFile(file);
+
+        try {
+            try (FileOutputStream os = new FileOutputStream(tempFile)) {
+                write(buffer, os.getChannel());
+            }
+            publish(tempFile, file);
+        } finally {
+            if (tempFile.exists()) {
+                //noinspection ResultOfMethodCallIgnored
+                tempFile.delete();
+            }
+        }
+    }
+
+    /**
+     * Writes the complete dex file to a channel, e.g. a pipe or a socket.
+     */
+    public static void write(final Dex dex, final WritableByteChannel channel) throws IOException {
+        write(write(dex), channel);
+    }
+
+    /**
+     * Writes the content of a dex file to a channel, without changing the position of the buffer.
+     */
+    public static void write(final ByteBuffer buffer, final WritableByteChannel channel) throws IOException {
+        final ByteBuffer content = buffer.duplicate();
+        while (content.hasRemaining()) {
+            channel.write(content);
+        }
+    }
+
+    /**
+     * Writes the complete dex file, checksums included, into {@code target} at its position, e.g.
+     * a direct buffer or shared memory, and advances the position past it.
+     *
+     * @throws BufferOverflowException if fewer than {@link #computeSize} bytes remain, in which
+     *                                 case the content of {@code target} is undefined
+     */
+    public static void write(final Dex dex, final ByteBuffer target) {
+        final int size = DexLayout.computeSize(dex);
+        if (target.remaining() < size) {
+            throw new BufferOverflowException();
+        }
+        writeChecksums(new DexWriter().writeInternal(dex, DexOutputStream.wrap(target, false)));
+        target.position(target.position() + size);
+    }
+
+    /**
+     * @return the dex file content, ready to be passed to an in-memory class loader
+     */
+    public static ByteBuffer write(final Dex dex) throws IOException {
+        final ByteBuffer buffer = encode(dex);
+        writeChecksums(buffer);
+        return buffer;
+    }
+
+    /**
+     * @return the dex file content, without the signature and the checksum, see
+     * {@link #writeChecksums}
+     */
+    public static ByteBuffer encode(final Dex dex) throws IOException {
+        return new DexWriter().writeInternal(dex, DexOutputStream.allocate(DexLayout.computeSize(dex)));
+    }
+
+    /**
+     * @return the exact size of the dex file written for {@code dex}
+     */
+    public static int computeSize(final Dex dex) {
+        return DexLayout.computeSize(dex);
+    }
+
+    /**
+     * Writes the SHA-1 signature and then the Adler32 checksum into the header of an encoded dex
+     * file.
+     */
+    public static void writeChecksums(final ByteBuffer buffer) {
+        writeChecksums(buffer, true);
+    }
+
+    /**
+     * Writes the checksums like {@link #writeChecksums(ByteBuffer)}, digesting the buffer in place.
+     *
+     * @param signature false to leave the SHA-1 signature zero, ART does not check it when loading
+     */
+    public static void writeChecksums(final ByteBuffer buffer, final boolean signature) {
+        final ByteBuffer content = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        final int start = content.position();
+
+        if (signature) {
+            // 签名覆盖 magic、checksum 和签名本身之后的所有内容
+            content.position(start + SIGNATURE_OFFSET + SIGNATURE_SIZE);
+            final byte[] sha1 = toSHA1(content);
+            content.position(start + SIGNATURE_OFFSET);
+            content.put(sha1);
         }
 
-        final File parent = file.getParentFile();
-        if (parent != null && !parent.exists()) {
-            if (!parent.mkdirs()) {
+        content.position(start + SIGNATURE_OFFSET);
+        content.putInt(start + CHECKSUM_OFFSET, toAdler32(content));
+    }
+
+    /**
+     * @param stream 预先按 dex 的大小分配好的缓冲区，写完后直接返回而不复制
+     */
+    private ByteBuffer writeInternal(final Dex dex, final DexOutputStream stream) {
+        writeFakeHeader(stream);
+        writeFakeIdsSection(dex, stream);
+
+        // DATA SECTION
+        dataOffset = stream.getPosition();
+        int[] stringOffsets = writeStringsData(dex.strings, stream);
+        int[] protosOffsets = writeProtoArgumentsData(dex.protos, stream);
+        int[] interfaceOffset = writeClassInterfaces(dex.classDefs, stream);
+        CodeItemOffsets[] codeItemOffsets = writeClassCodeItems(dex.classDefs, stream);
+        int[] classDataOffsets = writeClassDefsData(dex.classDefs, codeItemOffsets, stream);
+        mapOffset = stream.getPosition();
+
+        // IDS SECTION
+        stream.setPosition(HEADER_SIZE);
+        stringsOffset = writeStringsIds(stringOffsets, stream);
+        typesOffset = writeTypesIds(dex.types, stream);
+        protosOffset = writeProtosIds(dex.protos, protosOffsets, stream);
+        fieldsOffset = writeFieldsIds(dex.fields, stream);
+        methodsOffset = writeMethodsIds(dex.methods, stream);
+        classDefsOffset = writeClassDefs(dex.classDefs, classDataOffsets, interfaceOffset, stream);
+
+        stream.setPosition(mapOffset);
+        mapOffset = writeMap(stream);
+        dataSize = stream.getPosition() - dataOffset;
+
+        stream.setPosition(0x0);
+        writeHeader(dex, stream);
+
+        return stream.toByteBuffer();
+    }
+
+    /**
+     * @return a new, unique file in the directory of {@code file}, named after it
+     */
+    private static File prepareTempFile(final File file) throws IOException {
+        final File parent = file.getAbsoluteFile().getParentFile();
+        if (!parent.exists()) {
+            // 其他线程可能同时创建了目录
+            if (!parent.mkdirs() && !parent.isDirectory()) {
                 throw new IOException("Cannot create parent for file " + file);
             }
         }
+        return File.createTempFile(file.getName() + ".", TEMP_FILE_SUFFIX, parent);
+    }
+
+    private static void publish(final File tempFile, final File file) throws IOException {
+        //noinspection ResultOfMethodCallIgnored
+        tempFile.setReadOnly();
+        if (!tempFile.renameTo(file)) {
+            throw new IOException("Cannot rename " + tempFile + " to " + file);
+        }
     }
 
     private void writeFakeHeader(final DexOutputStream file) {
         map.put(EntryType.TYPE_HEADER_ITEM, 1, 0);
-        file.write(new byte[0x70]);
+        file.skip(HEADER_SIZE);
     }
 
     private void writeFakeIdsSection(final Dex dex, final DexOutputStream file) {
@@ -122,18 +288,18 @@ public class DexWriter {
                 + dex.fields.size() * 8
                 + dex.methods.size() * 8
                 + dex.classDefs.size() * 32;
-        file.write(new byte[size]);
+        file.skip(size);
     }
 
     private void writeHeader(final Dex dex, final DexOutputStream file) {
-        file.write(new byte[]{0x64, 0x65, 0x78, 0x0a, 0x30, 0x33, (byte) dex.version, 0x00});
+        file.write(MAGIC_PREFIX);
+        file.writeByte(dex.version);
+        file.writeByte(0);
 
-        final int checksumOffset = file.getPosition();
         file.writeInt(0); // checksum
-        final int signatureOffset = file.getPosition();
-        file.write(new byte[20]); // signature
-        file.writeInt(file.getSize()); // signature
-        file.writeInt(0x70); // head size
+        file.skip(SIGNATURE_SIZE); // signature
+        file.writeInt(file.getSize()); // file_size
+        file.writeInt(HEADER_SIZE); // head size
         file.writeInt(ENDIAN_CONSTANT); // endian_tag
         file.writeInt(0); // link_size
         file.writeInt(0); // link_off
@@ -152,32 +318,35 @@ public class DexWriter {
         file.writeInt(classDefsOffset); // class_defs_off
         file.writeInt(dataSize); // data_size
         file.writeInt(dataOffset); // data_off
-        final int endOffset = file.getPosition();
-
-        byte[] content = file.toByteArray();
-        file.setPosition(signatureOffset);
-        file.write(toSHA1(content, 16, content.length - 16));
-
-        content = file.toByteArray();
-        final Adler32 checksum = new Adler32();
-        checksum.update(content, 12, content.length - 12);
-        file.setPosition(checksumOffset);
-        file.writeInt((int) checksum.getValue());
-
-        file.setPosition(endOffset);
     }
 
-    private static byte[] toSHA1(byte[] data, int start, int length) {
+    private static byte[] toSHA1(final ByteBuffer data) {
         try {
             MessageDigest md = MessageDigest.getInstance("SHA-1");
-            md.update(data, start, length);
+            md.update(data);
             return md.digest();
         } catch (NoSuchAlgorithmException e) {
             throw new RuntimeException(e);
         }
     }
 
-    private int[] writeStringsData(final List<DexString> strings, final DexOutputStream stream) throws IOException {
+    private static int toAdler32(final ByteBuffer data) {
+        final Adler32 checksum = new Adler32();
+        if (data.hasArray()) {
+            checksum.update(data.array(), data.arrayOffset() + data.position(), data.remaining());
+        } else {
+            // Adler32.update(ByteBuffer) 需要 API 26，直接缓冲区分段读取
+            final byte[] chunk = new byte[Math.min(data.remaining(), 8192)];
+            while (data.hasRemaining()) {
+                final int length = Math.min(chunk.length, data.remaining());
+                data.get(chunk, 0, length);
+                checksum.update(chunk, 0, length);
+            }
+        }
+        return (int) checksum.getValue();
+    }
+
+    private int[] writeStringsData(final List<DexString> strings, final DexOutputStream stream) {
         final int[] offsets = new int[strings.size()];
         map.put(EntryType.TYPE_STRING_DATA_ITEM, strings.size(), stream.getPosition());
 
@@ -185,7 +354,7 @@ public class DexWriter {
             offsets[i] = stream.getPosition();
             final String string = strings.get(i).value;
             stream.writeUleb128(string.length());
-            stream.write(Mutf8.encode(string));
+            stream.writeMutf8(string);
             stream.writeByte(0);
         }
         return offsets;
@@ -326,11 +495,12 @@ public class DexWriter {
         for (int i = 0; i < classDataOffsets.length; i++) {
             classDataOffsets[i] = stream.getPosition();
             final DexClassDef classDef = classDefs.get(i);
-            stream.writeUleb128(0); // TODO static_fields_size
+            stream.writeUleb128(classDef.staticFields.size()); // static_fields_size
             stream.writeUleb128(classDef.instanceFields.size()); // instance_fields_size
             stream.writeUleb128(classDef.directMethods.size()); // direct_methods_size
             stream.writeUleb128(classDef.virtualMethods.size()); // virtual_methods_size
 
+            writeClassFields(classDef.staticFields, stream);
             writeClassFields(classDef.instanceFields, stream);
             writeClassMethods(classDef.directMethods, codeItemOffsets[i].directMethodCodeOffsets, stream);
             writeClassMethods(classDef.virtualMethods, codeItemOffsets[i].virtualMethodCodeOffsets, stream);
@@ -345,27 +515,72 @@ public class DexWriter {
         stream.writeShort(code.registersSize);
         stream.writeShort(code.insSize);
         stream.writeShort(code.outsSize);
-        stream.writeShort(0); // tries_size
+        stream.writeShort(code.tries.size()); // tries_size
         stream.writeInt(0); // debug_info_off
 
-        int count = 0;
-        for (DexInstruction instruction : code.instructions) {
-            count += instruction.getByteCode().length;
+        // try 块以 16 位代码单元为地址，addresses[i] 为第 i 条指令的地址
+        final int[][] byteCodes = new int[code.instructions.size()][];
+        final int[] addresses = new int[code.instructions.size() + 1];
+        for (int i = 0; i < byteCodes.length; i++) {
+            byteCodes[i] = code.instructions.get(i).getByteCode();
+            addresses[i + 1] = addresses[i] + byteCodes[i].length;
         }
+        final int count = addresses[byteCodes.length];
 
         stream.writeInt(count);
-        for (DexInstruction instruction : code.instructions) {
-            for (int s : instruction.getByteCode()) {
+        for (int[] byteCode : byteCodes) {
+            for (int s : byteCode) {
                 stream.writeShort(s);
             }
         }
 
+        if (!code.tries.isEmpty()) {
+            writeTries(code.tries, addresses, count, stream);
+        }
+
         return offset;
     }
 
+    private void writeTries(final List<DexCode.CatchAll> tries, final int[] addresses, final int insnsSize,
+                            final DexOutputStream stream) {
+        if ((insnsSize & 1) != 0) {
+            stream.writeShort(0); // padding
+        }
+
+        // 每个 try 块一个 encoded_catch_handler，各自的偏移相对于 encoded_catch_handler_list
+        final int[] handlerOffsets = new int[tries.size()];
+        int handlerOffset = DexLayout.uleb128Size(tries.size());
+        for (int i = 0; i < tries.size(); i++) {
+            handlerOffsets[i] = handlerOffset;
+            handlerOffset += 1 + DexLayout.uleb128Size(addresses[tries.get(i).handler]);
+        }
+
+        for (int i = 0; i < tries.size(); i++) {
+            final DexCode.CatchAll tryBlock = tries.get(i);
+            stream.writeInt(addresses[tryBlock.start]); // start_addr
+            stream.writeShort(addresses[tryBlock.end] - addresses[tryBlock.start]); // insn_count
+            stream.writeShort(handlerOffsets[i]); // handler_off
+        }
+
+        stream.writeUleb128(tries.size());
+        for (DexCode.CatchAll tryBlock : tries) {
+            stream.writeByte(0); // size: no typed handlers, followed by catch_all_addr
+            stream.writeUleb128(addresses[tryBlock.handler]);
+        }
+    }
+
     private void writeClassFields(final List<DexFieldDef> fields, final DexOutputStream stream) {
+        final List<DexFieldDef> sortedFields = new ArrayList<>(fields);
+        // encoded fields must be sorted by field index
+        Collections.sort(sortedFields, new Comparator<DexFieldDef>() {
+            @Override
+            public int compare(final DexFieldDef f1, final DexFieldDef f2) {
+                return Integer.compare(f1.field.index, f2.field.index);
+            }
+        });
+
         final ItemIndex index = new ItemIndex();
-        for (DexFieldDef field : fields) {
+        for (DexFieldDef field : sortedFields) {
             stream.writeUleb128(index.next(field.field.index));
             stream.writeUleb128(field.accessFlags.value);
         }
@@ -373,8 +588,20 @@ public class DexWriter {
 
     private void writeClassMethods(final List<DexMethodDef> methods, final int[] codeOffsets,
                                    final DexOutputStream stream) {
+        final Integer[] order = new Integer[methods.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        // encoded methods must be sorted by method index
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(final Integer i1, final Integer i2) {
+                return Integer.compare(methods.get(i1).method.index, methods.get(i2).method.index);
+            }
+        });
+
         final ItemIndex index = new ItemIndex();
-        for (int i = 0; i < methods.size(); i++) {
+        for (int i : order) {
             final DexMethodDef method = methods.get(i);
             stream.writeUleb128(index.next(method.method.index));
             stream.writeUleb128(method.accessFlags.value);
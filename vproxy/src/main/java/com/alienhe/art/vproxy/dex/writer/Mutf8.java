@@ -1,30 +1,56 @@
 package com.alienhe.art.vproxy.dex.writer;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
-import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
+ * Modified UTF-8 as used by dex files: U+0000 takes two bytes and supplementary characters are
+ * encoded as two surrogates of three bytes each. Unlike {@link java.io.DataOutputStream#writeUTF}
+ * there is no limit on the length.
+ *
  * @author alienhe
  */
 final class Mutf8 {
     private Mutf8() {
     }
 
-    static byte[] encode(String s) throws IOException {
-        try (final OutputStream os = new OutputStream()) {
-            try (DataOutputStream dos = new DataOutputStream(os)) {
-                dos.writeUTF(s);
-                return os.getBytes();
+    /**
+     * @return the number of bytes encoding the characters of {@code s} from {@code start}
+     */
+    static int encodedLength(final String s, final int start) {
+        int length = 0;
+        for (int i = start; i < s.length(); i++) {
+            final char c = s.charAt(i);
+            if (c != 0 && c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else {
+                length += 3;
             }
         }
+        return length;
     }
 
-    private static class OutputStream extends ByteArrayOutputStream {
-        byte[] getBytes() {
-            byte[] bytes = new byte[count - 2];
-            System.arraycopy(buf, 2, bytes, 0, bytes.length);
-            return bytes;
+    /**
+     * Encodes the characters of {@code s} from {@code start} into {@code dst} at the absolute
+     * {@code offset}, which must have room for {@link #encodedLength} bytes.
+     *
+     * @return the offset after the last byte written
+     */
+    static int encode(final String s, final int start, final ByteBuffer dst, int offset) {
+        for (int i = start; i < s.length(); i++) {
+            final char c = s.charAt(i);
+            if (c != 0 && c < 0x80) {
+                dst.put(offset++, (byte) c);
+            } else if (c < 0x800) {
+                dst.put(offset++, (byte) (0xC0 | (c >> 6)));
+                dst.put(offset++, (byte) (0x80 | (c & 0x3F)));
+            } else {
+                dst.put(offset++, (byte) (0xE0 | (c >> 12)));
+                dst.put(offset++, (byte) (0x80 | ((c >> 6) & 0x3F)));
+                dst.put(offset++, (byte) (0x80 | (c & 0x3F)));
+            }
         }
+        return offset;
     }
-}
\ No newline at end of file
+}
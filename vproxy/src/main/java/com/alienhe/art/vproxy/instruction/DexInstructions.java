@@ -3,6 +3,7 @@ package com.alienhe.art.vproxy.instruction;
 import com.alienhe.art.vproxy.dex.DexField;
 import com.alienhe.art.vproxy.dex.DexItem;
 import com.alienhe.art.vproxy.dex.DexMethod;
+import com.alienhe.art.vproxy.dex.DexString;
 import com.alienhe.art.vproxy.dex.DexType;
 
 /**
@@ -23,6 +24,10 @@ public class DexInstructions {
         return instruction11x(a, 0x0f);
     }
 
+    public static DexInstruction returnWide(int a) {
+        return instruction11x(a, 0x10);
+    }
+
     public static DexInstruction returnVoid() {
         return instruction10x(0x0e);
     }
@@ -35,6 +40,30 @@ public class DexInstructions {
         return instruction11n(a, b, 0x12);
     }
 
+    /**
+     * @param a destination register (8 bits)
+     * @param b source register (16 bits)
+     */
+    public static DexInstruction moveFrom16(final int a, final int b) {
+        return instruction22x(a, b, 0x02);
+    }
+
+    /**
+     * @param a destination register pair (8 bits)
+     * @param b source register pair (16 bits)
+     */
+    public static DexInstruction moveWideFrom16(final int a, final int b) {
+        return instruction22x(a, b, 0x05);
+    }
+
+    /**
+     * @param a destination register (8 bits)
+     * @param b source register (16 bits)
+     */
+    public static DexInstruction moveObjectFrom16(final int a, final int b) {
+        return instruction22x(a, b, 0x08);
+    }
+
     /**
      * @param a destination register (8 bits)
      * @param b signed int (16 bits)
@@ -43,6 +72,30 @@ public class DexInstructions {
         return instruction21s(a, b, 0x13);
     }
 
+    /**
+     * @param a destination register pair (8 bits)
+     * @param b signed int (16 bits), sign extended to 64 bits
+     */
+    public static DexInstruction constWide16(final int a, final int b) {
+        return instruction21s(a, b, 0x16);
+    }
+
+    /**
+     * @param a      destination register (8 bits)
+     * @param string string index
+     */
+    public static DexInstruction constString(final int a, final DexString string) {
+        return instruction21c(a, 0x1a, string);
+    }
+
+    /**
+     * @param a       destination register (8 bits)
+     * @param dexType type index
+     */
+    public static DexInstruction constClass(final int a, final DexType dexType) {
+        return instruction21c(a, 0x1c, dexType);
+    }
+
     /**
      * @param a destination register (8 bits)
      */
@@ -57,6 +110,22 @@ public class DexInstructions {
         return instruction11x(a, 0x0c);
     }
 
+    /**
+     * Must be the first instruction of an exception handler.
+     *
+     * @param a destination register (8 bits)
+     */
+    public static DexInstruction moveException(final int a) {
+        return instruction11x(a, 0x0d);
+    }
+
+    /**
+     * @param a exception-bearing register (8 bits)
+     */
+    public static DexInstruction throwException(final int a) {
+        return instruction11x(a, 0x27);
+    }
+
     /**
      * @param a destination register (8 bits)
      */
@@ -64,6 +133,45 @@ public class DexInstructions {
         return instruction11x(a, 0x0a);
     }
 
+    /**
+     * @param a destination register pair (8 bits)
+     */
+    public static DexInstruction moveResultWide(final int a) {
+        return instruction11x(a, 0x0b);
+    }
+
+    /**
+     * @param a destination register pair (4 bits)
+     * @param b source register (4 bits)
+     */
+    public static DexInstruction intToLong(final int a, final int b) {
+        return instruction12x(a, b, 0x81);
+    }
+
+    /**
+     * @param a destination register (4 bits)
+     * @param b source register (4 bits)
+     */
+    public static DexInstruction intToByte(final int a, final int b) {
+        return instruction12x(a, b, 0x8d);
+    }
+
+    /**
+     * @param a destination register (4 bits)
+     * @param b source register (4 bits)
+     */
+    public static DexInstruction intToChar(final int a, final int b) {
+        return instruction12x(a, b, 0x8e);
+    }
+
+    /**
+     * @param a destination register (4 bits)
+     * @param b source register (4 bits)
+     */
+    public static DexInstruction intToShort(final int a, final int b) {
+        return instruction12x(a, b, 0x8f);
+    }
+
     /**
      * @param a     value register or pair; may be source or dest (4 bits)
      * @param b     object register (4 bits)
@@ -82,6 +190,22 @@ public class DexInstructions {
         return instruction22c(a, b, 0x5b, field);
     }
 
+    /**
+     * @param a     value register or pair; may be source or dest (8 bits)
+     * @param field static field reference index (16 bits)
+     */
+    public static DexInstruction sgetObject(final int a, final DexField field) {
+        return instruction21c(a, 0x62, field);
+    }
+
+    /**
+     * @param a     value register or pair; may be source or dest (8 bits)
+     * @param field static field reference index (16 bits)
+     */
+    public static DexInstruction sputObject(final int a, final DexField field) {
+        return instruction21c(a, 0x69, field);
+    }
+
     /**
      * @param a value register or pair; may be source or dest (8 bits)
      * @param b array register (8 bits)
@@ -100,6 +224,14 @@ public class DexInstructions {
         return instruction23x(a, b, c, 0x4d);
     }
 
+    /**
+     * @param a       destination register (8 bits)
+     * @param dexType type index
+     */
+    public static DexInstruction newInstance(final int a, final DexType dexType) {
+        return instruction21c(a, 0x22, dexType);
+    }
+
     /**
      * @param a        destination register (4 bits)
      * @param b        size register
@@ -117,6 +249,15 @@ public class DexInstructions {
         return instruction35c(c, 0x70, method);
     }
 
+    /**
+     * @param c      argument register (4 bits)
+     * @param d      argument register (4 bits)
+     * @param method method reference index (16 bits)
+     */
+    public static DexInstruction invokeDirect(final int c, final int d, final DexMethod method) {
+        return instruction35c(c, d, 0x70, method);
+    }
+
     /**
      * @param c      argument register (4 bits)
      * @param method method reference index (16 bits)
@@ -125,6 +266,16 @@ public class DexInstructions {
         return instruction35c(c, 0x6e, method);
     }
 
+    /**
+     * @param c      argument register (4 bits)
+     * @param d      argument register (4 bits)
+     * @param e      argument register (4 bits)
+     * @param method method reference index (16 bits)
+     */
+    public static DexInstruction invokeVirtual(final int c, final int d, final int e, final DexMethod method) {
+        return instruction35c(c, d, e, 0x6e, method);
+    }
+
     /**
      * @param c      argument register (4 bits)
      * @param d      argument register (4 bits)
@@ -136,6 +287,42 @@ public class DexInstructions {
         return instruction35c(c, d, e, f, 0x72, method);
     }
 
+    /**
+     * @param c      first argument register (16 bits)
+     * @param count  number of argument registers (8 bits)
+     * @param method method reference index (16 bits)
+     */
+    public static DexInstruction invokeVirtualRange(final int c, final int count, final DexMethod method) {
+        return instruction3rc(c, count, 0x74, method);
+    }
+
+    /**
+     * @param c      first argument register (16 bits)
+     * @param count  number of argument registers (8 bits)
+     * @param method method reference index (16 bits)
+     */
+    public static DexInstruction invokeSuperRange(final int c, final int count, final DexMethod method) {
+        return instruction3rc(c, count, 0x75, method);
+    }
+
+    /**
+     * @param c      first argument register (16 bits)
+     * @param count  number of argument registers (8 bits)
+     * @param method method reference index (16 bits)
+     */
+    public static DexInstruction invokeDirectRange(final int c, final int count, final DexMethod method) {
+        return instruction3rc(c, count, 0x76, method);
+    }
+
+    /**
+     * @param c      first argument register (16 bits)
+     * @param count  number of argument registers (8 bits)
+     * @param method method reference index (16 bits)
+     */
+    public static DexInstruction invokeInterfaceRange(final int c, final int count, final DexMethod method) {
+        return instruction3rc(c, count, 0x78, method);
+    }
+
     /**
      * @param c      argument register (4 bits)
      * @param method method reference index (16 bits)
@@ -173,6 +360,16 @@ public class DexInstructions {
         };
     }
 
+    private static DexInstruction instruction12x(final int a, final int b, final int op) {
+        return new DexInstruction() {
+            @Override
+            public int[] getByteCode() {
+                // B|A|op
+                return new int[]{word(b, a, op)};
+            }
+        };
+    }
+
     private static DexInstruction instruction11x(final int a, final int op) {
         return new DexInstruction() {
             @Override
@@ -203,6 +400,16 @@ public class DexInstructions {
         };
     }
 
+    private static DexInstruction instruction22x(final int a, final int b, final int op) {
+        return new DexInstruction() {
+            @Override
+            public int[] getByteCode() {
+                // AA|op BBBB
+                return new int[]{word(a, op), b};
+            }
+        };
+    }
+
     private static DexInstruction instruction22c(final int a, final int b, final int op, final DexItem item) {
         return new DexInstruction() {
             @Override
@@ -243,6 +450,16 @@ public class DexInstructions {
         };
     }
 
+    private static DexInstruction instruction35c(final int c, final int d, final int e, final int op, final DexItem item) {
+        return new DexInstruction() {
+            @Override
+            public int[] getByteCode() {
+                // A|G|op BBBB F|E|D|C
+                return new int[]{word(0x3, 0x0, op), item.index, word(0x0, e, d, c)};
+            }
+        };
+    }
+
     private static DexInstruction instruction35c(final int c, final int d, final int e, final int f, final int op, final DexItem item) {
         return new DexInstruction() {
             @Override
@@ -253,6 +470,15 @@ public class DexInstructions {
         };
     }
 
+    private static DexInstruction instruction3rc(final int c, final int count, final int op, final DexItem item) {
+        return new DexInstruction() {
+            @Override
+            public int[] getByteCode() {
+                // AA|op BBBB CCCC
+                return new int[]{word(count, op), item.index, c};
+            }
+        };
+    }
 
     private static int word(final int high, final int low) {
         return ((high & 0xFF) << 8) | (low & 0xFF);
@@ -0,0 +1,105 @@
+package com.alienhe.art.vproxy;
+
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.UndeclaredThrowableException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs on the JVM, with hand written classes in place of the generated proxies put into the cache,
+ * since dex files cannot be loaded here.
+ */
+public class ProxyBuilderTest {
+
+    public interface Greeter {
+        String greet(String name);
+    }
+
+    public interface IndexedGreeter {
+        String greet(String name);
+    }
+
+    public static final class GreeterProxy implements Greeter {
+        private static final Method GREET;
+
+        static {
+            try {
+                GREET = Greeter.class.getMethod("greet", String.class);
+            } catch (NoSuchMethodException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        private final InvocationHandler handler;
+
+        public GreeterProxy(final InvocationHandler handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public String greet(final String name) {
+            try {
+                return (String) handler.invoke(this, GREET, new Object[]{name});
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable t) {
+                throw new UndeclaredThrowableException(t);
+            }
+        }
+    }
+
+    public static final class IndexedGreeterProxy implements IndexedGreeter {
+        private final IndexedInvocationHandler handler;
+
+        public IndexedGreeterProxy(final IndexedInvocationHandler handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public String greet(final String name) {
+            try {
+                return (String) handler.invoke(this, 0, new Object[]{name});
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable t) {
+                throw new UndeclaredThrowableException(t);
+            }
+        }
+    }
+
+    @Test
+    public void lambdaResolvesToInvocationHandlerOverload() throws Exception {
+        putProxyClass(Greeter.class, HandlerType.REFLECTIVE, GreeterProxy.class, InvocationHandler.class);
+
+        final Greeter greeter = ProxyBuilder.newProxyInstance(null, Greeter.class,
+                (proxy, method, args) -> method.getName() + " " + args[0]);
+
+        assertTrue(greeter instanceof GreeterProxy);
+        assertEquals("greet world", greeter.greet("world"));
+    }
+
+    @Test
+    public void lambdaResolvesToIndexedInvocationHandler() throws Exception {
+        putProxyClass(IndexedGreeter.class, HandlerType.INDEXED, IndexedGreeterProxy.class,
+                IndexedInvocationHandler.class);
+
+        final IndexedGreeter greeter = ProxyBuilder.newIndexedProxyInstance(null, IndexedGreeter.class,
+                (proxy, methodId, args) -> methodId + " " + args[0]);
+
+        assertTrue(greeter instanceof IndexedGreeterProxy);
+        assertEquals("0 world", greeter.greet("world"));
+    }
+
+    private static void putProxyClass(final Class<?> interfaceClass, final HandlerType handlerType,
+                                      final Class<?> proxyType, final Class<?> handlerClass) throws Exception {
+        final Field cacheField = ProxyBuilder.class.getDeclaredField("PROXY_CLASS_CACHE");
+        cacheField.setAccessible(true);
+        final ProxyClassCache cache = (ProxyClassCache) cacheField.get(null);
+        cache.putIfAbsent(new Class<?>[]{interfaceClass}, handlerType, null, ProxyBuilder.class.getClassLoader(),
+                ProxyClass.of(proxyType, null, handlerClass));
+    }
+}
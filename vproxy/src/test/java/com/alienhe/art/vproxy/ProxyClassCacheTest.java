@@ -0,0 +1,205 @@
+package com.alienhe.art.vproxy;
+
+import org.junit.Test;
+
+import java.io.Closeable;
+import java.io.Serializable;
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class ProxyClassCacheTest {
+
+    private static final int THREADS = 8;
+
+    private final ProxyClassCache cache = new ProxyClassCache();
+
+    private final ClassLoader parent = ProxyClassCacheTest.class.getClassLoader();
+
+    @Test(timeout = 10000)
+    public void concurrentCallersShareOneBuild() throws Exception {
+        final Class<?>[] key = {Runnable.class};
+        final AtomicInteger builds = new AtomicInteger();
+        final CountDownLatch building = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Callable<ProxyClass> builder = new Callable<ProxyClass>() {
+            @Override
+            public ProxyClass call() throws Exception {
+                builds.incrementAndGet();
+                building.countDown();
+                release.await();
+                return cache.putIfAbsent(key, HandlerType.REFLECTIVE, null, parent, newProxyClass(Object.class));
+            }
+        };
+
+        final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            final List<Future<ProxyClass>> results = new ArrayList<>();
+            for (int i = 0; i < THREADS; i++) {
+                results.add(executor.submit(new Callable<ProxyClass>() {
+                    @Override
+                    public ProxyClass call() {
+                        return cache.getOrBuild(key, HandlerType.REFLECTIVE, null, parent, builder);
+                    }
+                }));
+            }
+            building.await();
+            // 让其他线程有机会在生成期间到达
+            Thread.sleep(100);
+            release.countDown();
+
+            final ProxyClass first = results.get(0).get();
+            for (Future<ProxyClass> result : results) {
+                assertSame(first, result.get());
+            }
+            assertEquals(1, builds.get());
+            assertSame(first, cache.get(key, HandlerType.REFLECTIVE, null, parent));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void failedBuildIsRetried() {
+        final Class<?>[] key = {Runnable.class};
+        final AtomicInteger builds = new AtomicInteger();
+        final Callable<ProxyClass> builder = new Callable<ProxyClass>() {
+            @Override
+            public ProxyClass call() {
+                if (builds.incrementAndGet() == 1) {
+                    throw new IllegalStateException("first build fails");
+                }
+                return cache.putIfAbsent(key, HandlerType.REFLECTIVE, null, parent, newProxyClass(Object.class));
+            }
+        };
+
+        try {
+            cache.getOrBuild(key, HandlerType.REFLECTIVE, null, parent, builder);
+            fail();
+        } catch (IllegalStateException expected) {
+            assertEquals("first build fails", expected.getMessage());
+        }
+        assertNull(cache.get(key, HandlerType.REFLECTIVE, null, parent));
+
+        final ProxyClass proxyClass = cache.getOrBuild(key, HandlerType.REFLECTIVE, null, parent, builder);
+        assertNotNull(proxyClass);
+        assertEquals(2, builds.get());
+        assertSame(proxyClass, cache.getOrBuild(key, HandlerType.REFLECTIVE, null, parent, builder));
+        assertEquals(2, builds.get());
+    }
+
+    @Test
+    public void failedBatchIsRetried() {
+        final List<Class<?>[]> keys = keys(Runnable.class, Closeable.class);
+        final AtomicInteger builds = new AtomicInteger();
+        final ProxyClassCache.BatchBuilder builder = new ProxyClassCache.BatchBuilder() {
+            @Override
+            public List<ProxyClass> build(final List<Class<?>[]> interfaceClasses) {
+                if (builds.incrementAndGet() == 1) {
+                    throw new IllegalStateException("first batch fails");
+                }
+                return putAll(interfaceClasses);
+            }
+        };
+
+        try {
+            cache.getOrBuildAll(keys, HandlerType.REFLECTIVE, null, parent, builder);
+            fail();
+        } catch (IllegalStateException expected) {
+            assertEquals("first batch fails", expected.getMessage());
+        }
+
+        assertEquals(2, cache.getOrBuildAll(keys, HandlerType.REFLECTIVE, null, parent, builder).size());
+        assertEquals(2, builds.get());
+    }
+
+    @Test(timeout = 10000)
+    public void overlappingBatchesDoNotDeadlock() throws Exception {
+        final Map<Class<?>, AtomicInteger> builds = new ConcurrentHashMap<>();
+        final CountDownLatch firstClaimed = new CountDownLatch(1);
+        // 第一个批次认领了 Closeable 和 Serializable，要等第二个批次生成它认领的 Runnable 后才能完成；
+        // 第二个批次如果先等待 Closeable 再生成 Runnable，两者就会互相等待
+        final ProxyClassCache.BatchBuilder firstBuilder = new ProxyClassCache.BatchBuilder() {
+            @Override
+            public List<ProxyClass> build(final List<Class<?>[]> interfaceClasses) {
+                count(builds, interfaceClasses);
+                firstClaimed.countDown();
+                try {
+                    while (cache.get(new Class<?>[]{Runnable.class}, HandlerType.REFLECTIVE, null, parent) == null) {
+                        Thread.sleep(1);
+                    }
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                return putAll(interfaceClasses);
+            }
+        };
+        final ProxyClassCache.BatchBuilder secondBuilder = new ProxyClassCache.BatchBuilder() {
+            @Override
+            public List<ProxyClass> build(final List<Class<?>[]> interfaceClasses) {
+                count(builds, interfaceClasses);
+                return putAll(interfaceClasses);
+            }
+        };
+
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final Future<List<ProxyClass>> first = executor.submit(new Callable<List<ProxyClass>>() {
+                @Override
+                public List<ProxyClass> call() {
+                    return cache.getOrBuildAll(keys(Closeable.class, Serializable.class), HandlerType.REFLECTIVE,
+                            null, parent, firstBuilder);
+                }
+            });
+            firstClaimed.await();
+            final List<ProxyClass> second = cache.getOrBuildAll(keys(Runnable.class, Closeable.class),
+                    HandlerType.REFLECTIVE, null, parent, secondBuilder);
+
+            assertSame(first.get().get(0), second.get(1));
+            assertEquals(3, builds.size());
+            for (AtomicInteger count : builds.values()) {
+                assertEquals(1, count.get());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void count(final Map<Class<?>, AtomicInteger> builds, final List<Class<?>[]> interfaceClasses) {
+        for (Class<?>[] classes : interfaceClasses) {
+            builds.putIfAbsent(classes[0], new AtomicInteger());
+            builds.get(classes[0]).incrementAndGet();
+        }
+    }
+
+    private List<ProxyClass> putAll(final List<Class<?>[]> interfaceClasses) {
+        final List<ProxyClass> proxyClasses = new ArrayList<>(interfaceClasses.size());
+        for (Class<?>[] classes : interfaceClasses) {
+            proxyClasses.add(cache.putIfAbsent(classes, HandlerType.REFLECTIVE, null, parent,
+                    newProxyClass(classes[0])));
+        }
+        return proxyClasses;
+    }
+
+    private static List<Class<?>[]> keys(final Class<?>... interfaceClasses) {
+        final List<Class<?>[]> keys = new ArrayList<>(interfaceClasses.length);
+        for (Class<?> interfaceClass : interfaceClasses) {
+            keys.add(new Class<?>[]{interfaceClass});
+        }
+        return keys;
+    }
+
+    private static ProxyClass newProxyClass(final Class<?> type) {
+        return ProxyClass.of(type, null, (Constructor<?>) null);
+    }
+}
@@ -0,0 +1,232 @@
+package com.alienhe.art.vproxy.dex.writer;
+
+import com.alienhe.art.vproxy.dex.AccessFlags;
+import com.alienhe.art.vproxy.dex.Dex;
+import com.alienhe.art.vproxy.dex.DexBuilder;
+import com.alienhe.art.vproxy.dex.DexClassDef;
+import com.alienhe.art.vproxy.dex.DexCode;
+import com.alienhe.art.vproxy.dex.DexField;
+import com.alienhe.art.vproxy.dex.DexMethod;
+import com.alienhe.art.vproxy.dex.DexType;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.zip.Adler32;
+
+import static com.alienhe.art.vproxy.instruction.DexInstructions.const4;
+import static com.alienhe.art.vproxy.instruction.DexInstructions.constString;
+import static com.alienhe.art.vproxy.instruction.DexInstructions.invokeDirect;
+import static com.alienhe.art.vproxy.instruction.DexInstructions.moveException;
+import static com.alienhe.art.vproxy.instruction.DexInstructions.returnVoid;
+import static com.alienhe.art.vproxy.instruction.DexInstructions.sputObject;
+import static com.alienhe.art.vproxy.instruction.DexInstructions.throwException;
+import static org.junit.Assert.*;
+
+public class DexWriterTest {
+
+    private static final int CLASS_COUNT = 5;
+
+    /**
+     * 覆盖 MUTF-8 的各种编码长度，以及 uleb128 需要两个字节的长度
+     */
+    static final String[] STRINGS = {
+            "",
+            "ascii",
+            "\0",
+            "nul\0inside",
+            "\u00e9\u07ff",
+            "\u0800\u4e2d\u6587\uffff",
+            "\ud83d\ude00",
+            "unpaired \ud83d and \ude00",
+            repeat("long \u00fc\u4e2d\ud83d\ude00 ", 40),
+    };
+
+    @Test
+    public void computeSizeMatchesEncodedSize() throws Exception {
+        final Dex dex = newDex();
+        assertEquals(DexWriter.computeSize(dex), DexWriter.encode(dex).remaining());
+    }
+
+    @Test
+    public void writesIntoBufferOfComputedSize() throws Exception {
+        final Dex dex = newDex();
+        final ByteBuffer target = ByteBuffer.allocate(DexWriter.computeSize(dex));
+        DexWriter.write(dex, target);
+
+        assertEquals(target.capacity(), target.position());
+        assertArrayEquals(toBytes(DexWriter.write(dex)), target.array());
+    }
+
+    @Test
+    public void writesAtPositionOfTarget() throws Exception {
+        final Dex dex = newDex();
+        final ByteBuffer target = ByteBuffer.allocateDirect(DexWriter.computeSize(dex) + 16);
+        target.position(16);
+        DexWriter.write(dex, target);
+
+        assertEquals(target.capacity(), target.position());
+        target.position(16);
+        assertArrayEquals(toBytes(DexWriter.write(dex)), toBytes(target));
+    }
+
+    @Test(expected = BufferOverflowException.class)
+    public void rejectsTooSmallTarget() {
+        final Dex dex = newDex();
+        DexWriter.write(dex, ByteBuffer.allocate(DexWriter.computeSize(dex) - 1));
+    }
+
+    @Test
+    public void writesMappedFile() throws Exception {
+        final Dex dex = newDex();
+        final File dir = Files.createTempDirectory("dex").toFile();
+        final File file = new File(dir, "test.dex");
+        try {
+            DexWriter.writeMapped(dex, file);
+            assertArrayEquals(toBytes(DexWriter.write(dex)), Files.readAllBytes(file.toPath()));
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+            //noinspection ResultOfMethodCallIgnored
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void skippingSignatureOnlyZeroesItsBytes() throws Exception {
+        final Dex dex = newDex();
+        final ByteBuffer signed = DexWriter.encode(dex);
+        final ByteBuffer unsigned = DexWriter.encode(dex);
+        DexWriter.writeChecksums(signed, true);
+        DexWriter.writeChecksums(unsigned, false);
+        final byte[] signedBytes = toBytes(signed);
+        final byte[] unsignedBytes = toBytes(unsigned);
+
+        assertArrayEquals(Arrays.copyOfRange(signedBytes, 32, signedBytes.length),
+                Arrays.copyOfRange(unsignedBytes, 32, unsignedBytes.length));
+        assertArrayEquals(Arrays.copyOfRange(signedBytes, 0, 8), Arrays.copyOfRange(unsignedBytes, 0, 8));
+        assertArrayEquals(sha1(signedBytes, 32), Arrays.copyOfRange(signedBytes, 12, 32));
+        assertArrayEquals(new byte[20], Arrays.copyOfRange(unsignedBytes, 12, 32));
+        assertEquals(adler32(signedBytes, 12), checksumOf(signedBytes));
+        assertEquals(adler32(unsignedBytes, 12), checksumOf(unsignedBytes));
+    }
+
+    @Test
+    public void writesChecksumsAtPositionOfBuffer() throws Exception {
+        final Dex dex = newDex();
+        final byte[] expected = toBytes(DexWriter.write(dex));
+        for (boolean signature : new boolean[]{true, false}) {
+            final ByteBuffer encoded = DexWriter.encode(dex);
+            final ByteBuffer buffer = ByteBuffer.allocate(encoded.remaining() + 8);
+            buffer.position(8);
+            buffer.put(encoded);
+            buffer.position(8);
+            DexWriter.writeChecksums(buffer, signature);
+
+            final byte[] bytes = toBytes(buffer);
+            assertEquals(adler32(bytes, 12), checksumOf(bytes));
+            if (signature) {
+                assertArrayEquals(expected, bytes);
+            }
+        }
+    }
+
+    /**
+     * Several classes with fields, interfaces and catch-all handlers, whose code has both odd and
+     * even lengths and handler addresses on one and two uleb128 bytes.
+     */
+    static Dex newDex() {
+        final DexBuilder dexBuilder = new DexBuilder(0x35);
+        final DexType objectType = dexBuilder.addType(Object.class);
+        final DexType stringType = dexBuilder.addType(String.class);
+        final DexType voidType = dexBuilder.addType(void.class);
+        final DexType runnableType = dexBuilder.addType(Runnable.class);
+        final DexMethod objectInit = dexBuilder.addMethod(objectType, dexBuilder.addString("<init>"),
+                dexBuilder.addProto(voidType, Collections.<DexType>emptyList()));
+
+        for (int i = 0; i < CLASS_COUNT; i++) {
+            final DexType type = dexBuilder.addType("Lcom/alienhe/test/Class" + i + ";");
+            final DexClassDef.Builder classBuilder = dexBuilder.addClass()
+                    .type(type)
+                    .accessFlags(AccessFlags.fromValue(AccessFlags.ACC_PUBLIC))
+                    .superClass(objectType)
+                    .implementedInterface(runnableType);
+
+            final DexField nameField = dexBuilder.addField(type, dexBuilder.addString("name"), stringType);
+            classBuilder.staticField(nameField, AccessFlags.fromValue(AccessFlags.ACC_PUBLIC, AccessFlags.ACC_STATIC));
+            classBuilder.instanceField(dexBuilder.addField(type, dexBuilder.addString("value" + i), objectType),
+                    AccessFlags.fromValue(AccessFlags.ACC_PRIVATE));
+
+            classBuilder.directMethod(dexBuilder.addMethod(type, dexBuilder.addString("<init>"),
+                            dexBuilder.addProto(voidType, Collections.<DexType>emptyList())),
+                    AccessFlags.fromValue(AccessFlags.ACC_PUBLIC, AccessFlags.ACC_CONSTRUCTOR),
+                    DexCode.newBuilder()
+                            .registersSize(1)
+                            .insSize(1)
+                            .outsSize(1)
+                            .instruction(invokeDirect(0, objectInit))
+                            .instruction(returnVoid())
+                            .build());
+
+            final DexCode.Builder code = DexCode.newBuilder()
+                    .registersSize(2)
+                    .insSize(1)
+                    .outsSize(0);
+            for (int j = 0; j < i * 41; j++) {
+                code.instruction(const4(0, j & 7));
+            }
+            final int tryStart = code.size();
+            code.instruction(constString(0, dexBuilder.addString(STRINGS[i % STRINGS.length])))
+                    .instruction(constString(0, dexBuilder.addString(STRINGS[STRINGS.length - 1 - i])))
+                    .instruction(sputObject(0, nameField));
+            final int tryEnd = code.size();
+            code.instruction(returnVoid())
+                    .catchAll(tryStart, tryEnd, tryEnd + 1)
+                    .instruction(moveException(0))
+                    .instruction(throwException(0));
+            classBuilder.virtualMethod(dexBuilder.addMethod(type, dexBuilder.addString("run"),
+                            dexBuilder.addProto(voidType, Collections.<DexType>emptyList())),
+                    AccessFlags.fromValue(AccessFlags.ACC_PUBLIC), code.build());
+
+            classBuilder.build();
+        }
+        return dexBuilder.build();
+    }
+
+    static byte[] toBytes(final ByteBuffer buffer) {
+        final byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    private static byte[] sha1(final byte[] bytes, final int from) throws Exception {
+        final MessageDigest digest = MessageDigest.getInstance("SHA-1");
+        digest.update(bytes, from, bytes.length - from);
+        return digest.digest();
+    }
+
+    private static long adler32(final byte[] bytes, final int from) {
+        final Adler32 adler32 = new Adler32();
+        adler32.update(bytes, from, bytes.length - from);
+        return adler32.getValue();
+    }
+
+    private static long checksumOf(final byte[] bytes) {
+        return ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).getInt(8) & 0xffffffffL;
+    }
+
+    private static String repeat(final String s, final int count) {
+        final StringBuilder sb = new StringBuilder(s.length() * count);
+        for (int i = 0; i < count; i++) {
+            sb.append(s);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,92 @@
+package com.alienhe.art.vproxy.dex.writer;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class Mutf8Test {
+
+    @Test
+    public void encodesSpecialCharacters() {
+        assertArrayEquals(new byte[]{(byte) 0xC0, (byte) 0x80}, encode("\0"));
+        assertArrayEquals(new byte[]{(byte) 0xC3, (byte) 0xA9}, encode("\u00e9"));
+        assertArrayEquals(new byte[]{(byte) 0xDF, (byte) 0xBF}, encode("\u07ff"));
+        assertArrayEquals(new byte[]{(byte) 0xE0, (byte) 0xA0, (byte) 0x80}, encode("\u0800"));
+        assertArrayEquals(new byte[]{(byte) 0xE4, (byte) 0xB8, (byte) 0xAD}, encode("\u4e2d"));
+        // 补充字符按两个代理各三个字节编码，而不是标准 UTF-8 的四个字节
+        assertArrayEquals(new byte[]{(byte) 0xED, (byte) 0xA0, (byte) 0xBD, (byte) 0xED, (byte) 0xB8, (byte) 0x80},
+                encode("\ud83d\ude00"));
+    }
+
+    @Test
+    public void matchesDataOutputStream() throws IOException {
+        for (String s : DexWriterTest.STRINGS) {
+            assertEncodesLikeDataOutputStream(s);
+        }
+        final StringBuilder sb = new StringBuilder();
+        for (int c = 0; c <= Character.MAX_VALUE; c++) {
+            sb.append((char) c);
+            if (sb.length() == 1000) {
+                assertEncodesLikeDataOutputStream(sb.toString());
+                sb.setLength(0);
+            }
+        }
+        assertEncodesLikeDataOutputStream(sb.toString());
+    }
+
+    @Test
+    public void encodesFromStartAtOffset() throws IOException {
+        final String s = "abc\u00e9\0\u4e2d\ud83d\ude00";
+        for (int start = 0; start <= s.length(); start++) {
+            final byte[] expected = writeUTF(s.substring(start));
+            assertEquals(expected.length, Mutf8.encodedLength(s, start));
+
+            final ByteBuffer dst = ByteBuffer.allocate(expected.length + 5);
+            assertEquals(3 + expected.length, Mutf8.encode(s, start, dst, 3));
+            assertArrayEquals(expected, Arrays.copyOfRange(dst.array(), 3, 3 + expected.length));
+        }
+    }
+
+    @Test
+    public void writesIntoStreamOfExactSize() throws IOException {
+        for (String s : DexWriterTest.STRINGS) {
+            final byte[] expected = writeUTF(s);
+            final ByteBuffer target = ByteBuffer.allocate(expected.length);
+            final DexOutputStream stream = DexOutputStream.wrap(target, true);
+            stream.writeMutf8(s);
+
+            assertEquals(expected.length, stream.getPosition());
+            assertArrayEquals(expected, target.array());
+        }
+    }
+
+    private static void assertEncodesLikeDataOutputStream(final String s) throws IOException {
+        final byte[] expected = writeUTF(s);
+        assertEquals(expected.length, Mutf8.encodedLength(s, 0));
+        assertArrayEquals(expected, encode(s));
+    }
+
+    private static byte[] encode(final String s) {
+        final ByteBuffer dst = ByteBuffer.allocate(Mutf8.encodedLength(s, 0));
+        assertEquals(dst.capacity(), Mutf8.encode(s, 0, dst, 0));
+        return dst.array();
+    }
+
+    /**
+     * 原来的实现：{@link DataOutputStream#writeUTF} 去掉前两个字节的长度
+     */
+    private static byte[] writeUTF(final String s) throws IOException {
+        final ByteArrayOutputStream os = new ByteArrayOutputStream();
+        try (DataOutputStream dos = new DataOutputStream(os)) {
+            dos.writeUTF(s);
+        }
+        final byte[] bytes = os.toByteArray();
+        return Arrays.copyOfRange(bytes, 2, bytes.length);
+    }
+}